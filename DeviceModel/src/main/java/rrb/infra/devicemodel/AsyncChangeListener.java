@@ -0,0 +1,308 @@
+package rrb.infra.devicemodel;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Wraps a listener so events go through a bounded queue and are delivered in
+// order on an executor, off the thread calling update(). Register it in place
+// of the listener it wraps.
+public class AsyncChangeListener implements PropertyChangeListener {
+
+    public enum OverflowPolicy {
+        // wait for room in the queue; the one policy that lets a slow listener
+        // push back on the producer, so only use it when losing events is worse
+        BLOCK,
+        // discard the oldest queued event to make room
+        DROP_OLDEST,
+        // replace a queued event that changed the same leaves in place (last
+        // value wins); falls back to dropping the oldest when there's none
+        CONFLATE
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    // events delivered per executor task before yielding to other listeners
+    private static final int DRAIN_BATCH = 64;
+    private static ExecutorService defaultExecutor;
+
+    private final PropertyChangeListener listener;
+    private final Executor executor;
+    private final OverflowPolicy policy;
+
+    // ring buffer; head is the next event to deliver, tail the next free slot
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final PropertyChangeEvent[] events;
+    private final long[] enqueueTimes;
+    private final String[] keys;
+    private final HashMap<String, Long> pendingKeys;
+    private long head;
+    private long tail;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    // metrics; guarded by lock
+    private long enqueuedCount;
+    private long deliveredCount;
+    private long droppedCount;
+    private long conflatedCount;
+    private int maxQueueSize;
+
+    public AsyncChangeListener(PropertyChangeListener listener) {
+        this(listener, getDefaultExecutor(), DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST);
+    }
+
+    public AsyncChangeListener(PropertyChangeListener listener, OverflowPolicy policy) {
+        this(listener, getDefaultExecutor(), DEFAULT_CAPACITY, policy);
+    }
+
+    public AsyncChangeListener(PropertyChangeListener listener, Executor executor, int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+        }
+
+        this.listener = listener;
+        this.executor = executor;
+        this.policy = policy;
+        this.events = new PropertyChangeEvent[capacity];
+        this.enqueueTimes = new long[capacity];
+        this.keys = policy == OverflowPolicy.CONFLATE ? new String[capacity] : null;
+        this.pendingKeys = policy == OverflowPolicy.CONFLATE ? new HashMap<>() : null;
+    }
+
+    private static synchronized ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "DeviceNode-async-dispatch");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return defaultExecutor;
+    }
+
+    public PropertyChangeListener getListener() {
+        return listener;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    @Override
+    public void propertyChange(PropertyChangeEvent evt) {
+        String key = this.keys != null ? conflationKey(evt) : null;
+
+        lock.lock();
+        try {
+            enqueuedCount++;
+
+            // replace a queued event for the same leaves in place
+            if (key != null) {
+                Long seq = pendingKeys.get(key);
+                if (seq != null) {
+                    events[slot(seq)] = evt;
+                    conflatedCount++;
+                    return;
+                }
+            }
+
+            // make room
+            if (tail - head == events.length) {
+                if (policy == OverflowPolicy.BLOCK) {
+                    while (tail - head == events.length) {
+                        notFull.awaitUninterruptibly();
+                    }
+                } else {
+                    take();
+                    droppedCount++;
+                }
+            }
+
+            int slot = slot(tail);
+            events[slot] = evt;
+            enqueueTimes[slot] = System.nanoTime();
+            if (key != null) {
+                keys[slot] = key;
+                pendingKeys.put(key, tail);
+            }
+            tail++;
+            maxQueueSize = Math.max(maxQueueSize, (int) (tail - head));
+        } finally {
+            lock.unlock();
+        }
+
+        schedule();
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % events.length);
+    }
+
+    // must hold the lock and the queue must not be empty
+    private PropertyChangeEvent take() {
+        int slot = slot(head);
+        PropertyChangeEvent evt = events[slot];
+        events[slot] = null;
+        if (keys != null) {
+            pendingKeys.remove(keys[slot]);
+            keys[slot] = null;
+        }
+        head++;
+        notFull.signal();
+        return evt;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (Throwable ex) {
+                // an Error too, or nothing would ever schedule a drain again
+                scheduled.set(false);
+                Logger.getLogger(AsyncChangeListener.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private void drain() {
+        for (int count = 0; count < DRAIN_BATCH; count++) {
+            PropertyChangeEvent evt;
+            lock.lock();
+            try {
+                if (tail == head) {
+                    break;
+                }
+                evt = take();
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                listener.propertyChange(evt);
+            } catch (Throwable ex) {
+                // an Error too, or the drain stops with scheduled still set and the
+                // queue fills up, blocking BLOCK producers for good
+                Logger.getLogger(AsyncChangeListener.class.getName()).log(Level.SEVERE, null, ex);
+            }
+
+            lock.lock();
+            try {
+                deliveredCount++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // let another run pick up anything queued since, or left after a full batch
+        scheduled.set(false);
+        if (getQueueSize() > 0) {
+            schedule();
+        }
+    }
+
+    // paths of the change record's leaves, sorted, e.g.
+    // /Channels/Channel/_3/Status and /Channels/Channel/_3/Temperature; two
+    // events only share a key when they change exactly the same leaves, so
+    // the later one carries everything the earlier one did
+    private static String conflationKey(PropertyChangeEvent evt) {
+        if (!(evt.getNewValue() instanceof DeviceNode)) {
+            return evt.getPropertyName();
+        }
+
+        List<String> leaves = new ArrayList<>();
+        NodeCursor cursor = NodeCursor.depthFirst((DeviceNode) evt.getNewValue(), true);
+        while (cursor.next()) {
+            if (cursor.node().children.isEmpty()) {
+                leaves.add(cursor.path().toString());
+            }
+        }
+        if (leaves.size() == 1) {
+            return leaves.get(0);
+        }
+
+        Collections.sort(leaves);
+        return String.join("\n", leaves);
+    }
+
+// *********************************************** //
+// Lag metrics
+// *********************************************** //
+    // events waiting to be delivered
+    public int getQueueSize() {
+        lock.lock();
+        try {
+            return (int) (tail - head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxQueueSize() {
+        lock.lock();
+        try {
+            return maxQueueSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // how long the oldest queued event has been waiting, in milliseconds
+    public long getLagMillis() {
+        lock.lock();
+        try {
+            if (tail == head) {
+                return 0;
+            }
+            return (System.nanoTime() - enqueueTimes[slot(head)]) / 1000000L;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEnqueuedCount() {
+        lock.lock();
+        try {
+            return enqueuedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDeliveredCount() {
+        lock.lock();
+        try {
+            return deliveredCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getConflatedCount() {
+        lock.lock();
+        try {
+            return conflatedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package rrb.infra.devicemodel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Finds a subtree's nodes by attribute (and optionally value) without scanning
+// it; enable with node.enableIndex(index). Kept up to date as the subtree
+// changes, and lookups return the live nodes.
+public final class AttributeIndex {
+    private static final int LOCK_STRIPES = 64;
+
+    // one indexed attribute, or the values
+    private static final class Column {
+        private final ConcurrentHashMap<String, Set<DeviceNode>> nodes = new ConcurrentHashMap<>();
+        // what each node is indexed under now, so a change knows what to replace
+        private final ConcurrentHashMap<DeviceNode, String> indexed = new ConcurrentHashMap<>();
+
+        // must hold the node's stripe
+        private void set(DeviceNode node, String now) {
+            String before = now != null ? indexed.put(node, now) : indexed.remove(node);
+            if (before == null ? now == null : before.equals(now)) {
+                return;
+            }
+
+            if (before != null) {
+                nodes.computeIfPresent(before, (value, set) -> {
+                    set.remove(node);
+                    return set.isEmpty() ? null : set;
+                });
+            }
+            if (now != null) {
+                nodes.compute(now, (value, set) -> {
+                    if (set == null) {
+                        set = ConcurrentHashMap.newKeySet();
+                    }
+                    set.add(node);
+                    return set;
+                });
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, Column> columns = new ConcurrentHashMap<>();
+    // null unless values are indexed
+    private final Column values;
+    // a change re-reads the node under its stripe, so racing changes to the
+    // same node can't leave a stale entry behind
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    public AttributeIndex(boolean indexValues, String... keys) {
+        for (String key : keys) {
+            columns.put(Names.canonical(key), new Column());
+        }
+        this.values = indexValues ? new Column() : null;
+        for (int idx = 0; idx < LOCK_STRIPES; idx++) {
+            locks[idx] = new Object();
+        }
+    }
+
+    public Set<String> getKeys() {
+        return Collections.unmodifiableSet(columns.keySet());
+    }
+
+    public boolean isIndexingValues() {
+        return values != null;
+    }
+
+// *********************************************** //
+// Lookups
+// *********************************************** //
+    // nodes whose attribute key is value
+    public List<DeviceNode> find(String key, String value) {
+        Set<DeviceNode> found = column(key).nodes.get(value);
+        return found != null ? new ArrayList<>(found) : new ArrayList<>();
+    }
+
+    // nodes that have the attribute at all
+    public List<DeviceNode> findAll(String key) {
+        List<DeviceNode> ret = new ArrayList<>();
+        for (Set<DeviceNode> found : column(key).nodes.values()) {
+            ret.addAll(found);
+        }
+        return ret;
+    }
+
+    // nodes whose value (in text form) is value
+    public List<DeviceNode> findByValue(String value) {
+        if (values == null) {
+            throw new IllegalStateException("Values aren't indexed");
+        }
+
+        Set<DeviceNode> found = values.nodes.get(value);
+        return found != null ? new ArrayList<>(found) : new ArrayList<>();
+    }
+
+    private Column column(String key) {
+        Column ret = columns.get(key);
+        if (ret == null) {
+            throw new IllegalArgumentException("Attribute isn't indexed: " + key);
+        }
+        return ret;
+    }
+
+// *********************************************** //
+// Upkeep, called by DeviceNode
+// *********************************************** //
+    // the node joined or left the indexed subtree; entries follow whether
+    // the node still points at this index
+    void nodeChanged(DeviceNode node) {
+        synchronized (lock(node)) {
+            for (String key : columns.keySet()) {
+                refresh(node, key);
+            }
+            if (values != null) {
+                values.set(node, node.getIndex() == this ? node.getValue() : null);
+            }
+        }
+    }
+
+    void attributeChanged(DeviceNode node, String key) {
+        if (!columns.containsKey(key)) {
+            return;
+        }
+
+        synchronized (lock(node)) {
+            refresh(node, key);
+        }
+    }
+
+    void valueChanged(DeviceNode node) {
+        if (values == null) {
+            return;
+        }
+
+        synchronized (lock(node)) {
+            values.set(node, node.getIndex() == this ? node.getValue() : null);
+        }
+    }
+
+    // must hold the node's stripe
+    private void refresh(DeviceNode node, String key) {
+        columns.get(key).set(node, node.getIndex() == this ? node.getAttribute(key) : null);
+    }
+
+    private Object lock(DeviceNode node) {
+        return locks[System.identityHashCode(node) & (LOCK_STRIPES - 1)];
+    }
+}
@@ -0,0 +1,233 @@
+package rrb.infra.devicemodel;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A node's attributes as EMPTY, an immutable key/value array replaced whole on
+// every write, or a ConcurrentHashMap past INLINE_PAIRS. Arrays are never
+// changed once published, so they're read without locks and shared by clones.
+final class Attributes {
+    static final Object[] EMPTY = new Object[0];
+    // past this many attributes a node switches over to a map
+    static final int INLINE_PAIRS = 8;
+
+    private Attributes() {}
+
+    static String get(Object state, String key) {
+        if (state instanceof Object[]) {
+            Object[] pairs = (Object[]) state;
+            for (int idx = 0; idx < pairs.length; idx += 2) {
+                if (pairs[idx] == key) {
+                    return (String) pairs[idx + 1];
+                }
+            }
+            for (int idx = 0; idx < pairs.length; idx += 2) {
+                if (pairs[idx].equals(key)) {
+                    return (String) pairs[idx + 1];
+                }
+            }
+            return null;
+        }
+
+        return key != null ? map(state).get(key) : null;
+    }
+
+    static int size(Object state) {
+        if (state instanceof Object[]) {
+            return ((Object[]) state).length / 2;
+        }
+        return map(state).size();
+    }
+
+    // new state with the attribute set; a map state is changed in place and returned as is
+    static Object put(Object state, String key, String value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+
+        if (!(state instanceof Object[])) {
+            map(state).put(key, value);
+            return state;
+        }
+
+        Object[] pairs = (Object[]) state;
+        int idx = indexOf(pairs, key);
+        if (idx >= 0) {
+            if (pairs[idx + 1].equals(value)) {
+                return state;
+            }
+            Object[] ret = pairs.clone();
+            ret[idx + 1] = value;
+            return ret;
+        }
+
+        key = Names.canonical(key);
+        if (pairs.length / 2 >= INLINE_PAIRS) {
+            ConcurrentHashMap<String, String> map = new ConcurrentHashMap<>();
+            for (idx = 0; idx < pairs.length; idx += 2) {
+                map.put((String) pairs[idx], (String) pairs[idx + 1]);
+            }
+            map.put(key, value);
+            return map;
+        }
+
+        Object[] ret = new Object[pairs.length + 2];
+        System.arraycopy(pairs, 0, ret, 0, pairs.length);
+        ret[pairs.length] = key;
+        ret[pairs.length + 1] = value;
+        return ret;
+    }
+
+    // new state without the attribute; a map state is changed in place and returned as is
+    static Object remove(Object state, String key) {
+        if (!(state instanceof Object[])) {
+            if (key != null) {
+                map(state).remove(key);
+            }
+            return state;
+        }
+
+        Object[] pairs = (Object[]) state;
+        int idx = indexOf(pairs, key);
+        if (idx < 0) {
+            return state;
+        }
+        if (pairs.length == 2) {
+            return EMPTY;
+        }
+
+        Object[] ret = new Object[pairs.length - 2];
+        System.arraycopy(pairs, 0, ret, 0, idx);
+        System.arraycopy(pairs, idx + 2, ret, idx, pairs.length - idx - 2);
+        return ret;
+    }
+
+    // an immutable pairs array with the same contents, safe to share
+    static Object[] pairs(Object state) {
+        if (state instanceof Object[]) {
+            return (Object[]) state;
+        }
+
+        Map<String, String> map = map(state);
+        Object[] ret = new Object[map.size() * 2];
+        int idx = 0;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            if (idx == ret.length) {
+                break;
+            }
+            ret[idx++] = entry.getKey();
+            ret[idx++] = entry.getValue();
+        }
+        if (idx < ret.length) {
+            Object[] trimmed = new Object[idx];
+            System.arraycopy(ret, 0, trimmed, 0, idx);
+            ret = trimmed;
+        }
+        return ret;
+    }
+
+    // state for a copy of a node; inline arrays are shared, maps copied
+    static Object copy(Object state) {
+        if (state instanceof Object[]) {
+            return state;
+        }
+        return new ConcurrentHashMap<>(map(state));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentHashMap<String, String> map(Object state) {
+        return (ConcurrentHashMap<String, String>) state;
+    }
+
+    private static int indexOf(Object[] pairs, String key) {
+        for (int idx = 0; idx < pairs.length; idx += 2) {
+            if (pairs[idx] == key || pairs[idx].equals(key)) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+    // read-only map over an attribute state
+    abstract static class View extends AbstractMap<String, String> {
+        // the current state to read from
+        abstract Object state();
+
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? Attributes.get(state(), (String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            return Attributes.size(state());
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    Object state = state();
+                    if (!(state instanceof Object[])) {
+                        Iterator<Map.Entry<String, String>> it = map(state).entrySet().iterator();
+                        // read-only, same as the pairs
+                        return new Iterator<Map.Entry<String, String>>() {
+                            @Override
+                            public boolean hasNext() {
+                                return it.hasNext();
+                            }
+
+                            @Override
+                            public Map.Entry<String, String> next() {
+                                Map.Entry<String, String> entry = it.next();
+                                return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+                            }
+                        };
+                    }
+
+                    Object[] pairs = (Object[]) state;
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private int idx;
+
+                        @Override
+                        public boolean hasNext() {
+                            return idx < pairs.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (idx >= pairs.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<>(
+                                    (String) pairs[idx], (String) pairs[idx + 1]);
+                            idx += 2;
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return View.this.size();
+                }
+            };
+        }
+    }
+}
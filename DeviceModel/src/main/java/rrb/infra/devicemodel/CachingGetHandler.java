@@ -0,0 +1,172 @@
+package rrb.infra.devicemodel;
+
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Wraps a get handler so its results are reused for ttlMillis per set of query
+// parameters, with concurrent misses sharing one call; with staleMillis, a
+// stale result is returned while one background call refreshes it. Callers
+// get their own copies.
+public class CachingGetHandler extends NodeGetHandler {
+    // results kept at most; the cache is cleared when it fills, the same way
+    // NodeManager's path cache is
+    private static final int MAX_ENTRIES = 1024;
+    private static ExecutorService refreshExecutor;
+
+    private final NodeGetHandler handler;
+    private final long ttlMillis;
+    private final long staleMillis;
+
+    private final ConcurrentHashMap<HashMap<String, String>, Result> results = new ConcurrentHashMap<>();
+    // calls to the wrapped handler under way, so concurrent misses can wait on them
+    private final ConcurrentHashMap<HashMap<String, String>, CompletableFuture<Result>> inFlight = new ConcurrentHashMap<>();
+    // bumped by invalidate(), so a call that started before it doesn't put its result back
+    private final AtomicLong generation = new AtomicLong();
+
+    private static final class Result {
+        private final DeviceNode node;
+        private final long time;
+
+        private Result(DeviceNode node, long time) {
+            this.node = node;
+            this.time = time;
+        }
+    }
+
+    public CachingGetHandler(NodeGetHandler handler, long ttlMillis) {
+        this(handler, ttlMillis, 0);
+    }
+
+    public CachingGetHandler(NodeGetHandler handler, long ttlMillis, long staleMillis) {
+        if (handler == null) {
+            throw new NullPointerException();
+        }
+        if (ttlMillis < 0 || staleMillis < 0) {
+            throw new IllegalArgumentException("TTL and stale time can't be negative");
+        }
+
+        this.handler = handler;
+        this.ttlMillis = ttlMillis;
+        this.staleMillis = staleMillis;
+    }
+
+    private static synchronized ExecutorService getRefreshExecutor() {
+        if (refreshExecutor == null) {
+            refreshExecutor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "DeviceNode-get-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return refreshExecutor;
+    }
+
+    public NodeGetHandler getHandler() {
+        return handler;
+    }
+
+    @Override
+    public DeviceNode handle(HashMap<String, String> queryParameters) {
+        HashMap<String, String> key = queryParameters != null ? new HashMap<>(queryParameters) : new HashMap<>();
+
+        Result result = results.get(key);
+        if (result != null) {
+            long age = System.currentTimeMillis() - result.time;
+            if (age < ttlMillis) {
+                return copy(result.node);
+            }
+            if (age < ttlMillis + staleMillis) {
+                refresh(key);
+                return copy(result.node);
+            }
+        }
+
+        return copy(load(key));
+    }
+
+    // drop every cached result; calls already under way still answer their
+    // callers but aren't cached or joined by later ones
+    public void invalidate() {
+        generation.incrementAndGet();
+        inFlight.clear();
+        results.clear();
+    }
+
+    public void invalidate(HashMap<String, String> queryParameters) {
+        HashMap<String, String> key = queryParameters != null ? queryParameters : new HashMap<String, String>();
+        generation.incrementAndGet();
+        inFlight.remove(key);
+        results.remove(key);
+    }
+
+    // call the handler, or wait for the call another thread already made
+    private DeviceNode load(HashMap<String, String> key) {
+        CompletableFuture<Result> call = new CompletableFuture<>();
+        CompletableFuture<Result> running = inFlight.putIfAbsent(key, call);
+        if (running == null) {
+            call(key, call, false);
+            running = call;
+        }
+
+        try {
+            return running.join().node;
+        } catch (CompletionException ex) {
+            // the handler's own exception, same as calling it directly
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    // refresh in the background unless a call is already under way
+    private void refresh(HashMap<String, String> key) {
+        CompletableFuture<Result> call = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(key, call) == null) {
+            getRefreshExecutor().execute(() -> call(key, call, true));
+        }
+    }
+
+    private void call(HashMap<String, String> key, CompletableFuture<Result> call, boolean background) {
+        long started = generation.get();
+        try {
+            Result result = new Result(handler.handle(new HashMap<>(key)), System.currentTimeMillis());
+            if (generation.get() == started) {
+                if (results.size() >= MAX_ENTRIES) {
+                    results.clear();
+                }
+                results.put(key, result);
+                // invalidated while putting it in
+                if (generation.get() != started) {
+                    results.remove(key, result);
+                }
+            }
+            call.complete(result);
+        } catch (Throwable ex) {
+            // anything, Errors included, so callers joining the call don't wait forever
+            call.completeExceptionally(ex);
+            if (background) {
+                // nobody is waiting on a refresh; the stale result stays until it runs out
+                Logger.getLogger(CachingGetHandler.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } finally {
+            // only after the result is in, so later callers find it there
+            inFlight.remove(key, call);
+        }
+    }
+
+    // a copy of the whole result, so callers can't change the cached one
+    private static DeviceNode copy(DeviceNode node) {
+        return node != null ? node.get() : null;
+    }
+}
@@ -0,0 +1,328 @@
+package rrb.infra.devicemodel;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// Recent numeric value history for the leaves under the nodes it's enabled on
+// (node.enableJournal(journal)), in a fixed-size ring of (time, path id,
+// value) entries; the oldest are overwritten once it's full. A path is
+// forgotten once its last entry is.
+public final class ChangeJournal {
+
+    // a node's path id, good while its tree has the same root and
+    // structure version and the id hasn't been dropped and handed to another
+    // path since (see generation); the root is weak so a removed node doesn't
+    // keep its old tree alive
+    static final class PathId {
+        private final ChangeJournal journal;
+        private final WeakReference<DeviceNode> root;
+        private final int structureVersion;
+        private final int id;
+        private final int generation;
+
+        private PathId(ChangeJournal journal, DeviceNode root, int structureVersion, int id, int generation) {
+            this.journal = journal;
+            this.root = new WeakReference<>(root);
+            this.structureVersion = structureVersion;
+            this.id = id;
+            this.generation = generation;
+        }
+    }
+
+    // one downsampling bucket
+    public static final class Bucket {
+        private final long start;
+        private final int count;
+        private final double min;
+        private final double max;
+        private final double sum;
+
+        private Bucket(long start, int count, double min, double max, double sum) {
+            this.start = start;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getAvg() {
+            return sum / count;
+        }
+    }
+
+    // the entries for one path, oldest first
+    public static final class Samples {
+        private final long[] times;
+        private final double[] values;
+
+        private Samples(long[] times, double[] values) {
+            this.times = times;
+            this.values = values;
+        }
+
+        public int size() {
+            return times.length;
+        }
+
+        public long getTime(int idx) {
+            return times[idx];
+        }
+
+        public double getValue(int idx) {
+            return values[idx];
+        }
+    }
+
+    private final int capacity;
+    // ring buffer; guarded by this. written counts every entry ever recorded,
+    // so the oldest live entry is at written - size
+    private final long[] times;
+    private final int[] pathIds;
+    private final double[] values;
+    private long written;
+    // never goes backwards, so entries stay in time order for the searches
+    private long lastTime;
+
+    // path ids, all guarded by this. An id lives as long as some entry in
+    // the ring has it; when the last one is overwritten the path is dropped
+    // and the id goes on the free list for the next new path, so there are
+    // never more ids than entries. generations[id] goes up each time the id
+    // is dropped, which is how a node's cached PathId finds out it's stale
+    private final HashMap<String, Integer> pathToId = new HashMap<>();
+    private String[] paths = new String[16];
+    private int[] refs = new int[16];
+    private int[] generations = new int[16];
+    private int nextId;
+    private int[] freeIds = new int[16];
+    private int freeCount;
+
+    public ChangeJournal(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        this.capacity = capacity;
+        this.times = new long[capacity];
+        this.pathIds = new int[capacity];
+        this.values = new double[capacity];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return (int) Math.min(written, capacity);
+    }
+
+    // every path with an entry still in the journal
+    public synchronized List<String> getPaths() {
+        List<String> ret = new ArrayList<>(pathToId.size());
+        for (int id = 0; id < nextId; id++) {
+            if (paths[id] != null) {
+                ret.add(paths[id]);
+            }
+        }
+        return ret;
+    }
+
+    // called by DeviceNode with the value it just took on
+    void record(DeviceNode node, ValueType type, long bits, String text) {
+        double value = type.toNumber(bits, text);
+        if (Double.isNaN(value)) {
+            return;
+        }
+
+        DeviceNode root = node;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        // read the version before the path so a concurrent change leaves the id stale
+        int version = root.getStructureVersion();
+        PathId cached = node.journalPath;
+        if (cached != null && (cached.journal != this || cached.structureVersion != version
+                || cached.root.get() != root)) {
+            cached = null;
+        }
+        // first change since the node got its current path
+        String path = cached == null ? node.getNodePath() : null;
+
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            int id;
+            if (cached != null && generations[cached.id] == cached.generation) {
+                id = cached.id;
+            } else {
+                // or the id was dropped since
+                if (path == null) {
+                    path = node.getNodePath();
+                }
+                id = idOf(path);
+                node.journalPath = new PathId(this, root, version, id, generations[id]);
+            }
+
+            if (now < lastTime) {
+                now = lastTime;
+            }
+            lastTime = now;
+
+            // take the new reference before dropping the old, in case they're the same id
+            int slot = (int) (written % capacity);
+            refs[id]++;
+            if (written >= capacity) {
+                release(pathIds[slot]);
+            }
+            times[slot] = now;
+            pathIds[slot] = id;
+            values[slot] = value;
+            written++;
+        }
+    }
+
+    // must hold the lock
+    private int idOf(String path) {
+        Integer ret = pathToId.get(path);
+        if (ret != null) {
+            return ret;
+        }
+
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            id = nextId++;
+            if (id == paths.length) {
+                int length = paths.length * 2;
+                paths = Arrays.copyOf(paths, length);
+                refs = Arrays.copyOf(refs, length);
+                generations = Arrays.copyOf(generations, length);
+                freeIds = Arrays.copyOf(freeIds, length);
+            }
+        }
+        paths[id] = path;
+        pathToId.put(path, id);
+        return id;
+    }
+
+    // must hold the lock; an entry with this id was overwritten
+    private void release(int id) {
+        if (--refs[id] > 0) {
+            return;
+        }
+
+        pathToId.remove(paths[id]);
+        paths[id] = null;
+        generations[id]++;
+        freeIds[freeCount++] = id;
+    }
+
+// *********************************************** //
+// Queries
+// *********************************************** //
+    // entries for the path (as given by DeviceNode.getNodePath()) with
+    // from <= time < to, oldest first
+    public Samples getRange(String path, long from, long to) {
+        synchronized (this) {
+            Integer pathId = pathToId.get(path);
+            if (pathId == null) {
+                return new Samples(new long[0], new double[0]);
+            }
+            int id = pathId;
+
+            long start = firstAtOrAfter(from);
+            long end = firstAtOrAfter(to);
+
+            // count first so the result is allocated at its size
+            int count = 0;
+            for (long entry = start; entry < end; entry++) {
+                if (pathIds[(int) (entry % capacity)] == id) {
+                    count++;
+                }
+            }
+
+            long[] retTimes = new long[count];
+            double[] retValues = new double[count];
+            int idx = 0;
+            for (long entry = start; entry < end && idx < count; entry++) {
+                int slot = (int) (entry % capacity);
+                if (pathIds[slot] == id) {
+                    retTimes[idx] = times[slot];
+                    retValues[idx] = values[slot];
+                    idx++;
+                }
+            }
+            return new Samples(retTimes, retValues);
+        }
+    }
+
+    public Samples getRange(DeviceNode node, long from, long to) {
+        return getRange(node.getNodePath(), from, to);
+    }
+
+    // min/max/avg per bucketMillis wide bucket over from <= time < to, for
+    // the buckets that have any entries, oldest first
+    public List<Bucket> downsample(String path, long from, long to, long bucketMillis) {
+        if (bucketMillis <= 0) {
+            throw new IllegalArgumentException("Bucket width must be positive");
+        }
+
+        Samples samples = getRange(path, from, to);
+        List<Bucket> ret = new ArrayList<>();
+        int idx = 0;
+        while (idx < samples.size()) {
+            long start = from + (samples.getTime(idx) - from) / bucketMillis * bucketMillis;
+            long end = start + bucketMillis;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            double sum = 0;
+            int count = 0;
+            for (; idx < samples.size() && samples.getTime(idx) < end; idx++) {
+                double value = samples.getValue(idx);
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+                count++;
+            }
+            ret.add(new Bucket(start, count, min, max, sum));
+        }
+        return ret;
+    }
+
+    public List<Bucket> downsample(DeviceNode node, long from, long to, long bucketMillis) {
+        return downsample(node.getNodePath(), from, to, bucketMillis);
+    }
+
+    // must hold the lock; the first live entry with time >= t, by binary search
+    private long firstAtOrAfter(long t) {
+        long lo = Math.max(0, written - capacity);
+        long hi = written;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (times[(int) (mid % capacity)] < t) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,254 @@
+package rrb.infra.devicemodel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// Index over a node's children by name and by (name, _id). The children list
+// stays the source of truth for order; change this under the same lock.
+final class ChildIndex {
+    private final HashMap<String, Group> groups = new HashMap<>();
+    // the node these are the children of; only its children's siblingOrder is kept
+    private final DeviceNode owner;
+    private int nextOrder;
+    // orders of children whose siblingOrder is another parent's, usually none
+    private IdentityHashMap<DeviceNode, Integer> foreignOrders;
+
+    // all the children sharing a single name, in child order
+    private static final class Group {
+        private final ArrayList<DeviceNode> nodes = new ArrayList<>(2);
+        private final ArrayList<DeviceNode> unidentified = new ArrayList<>(2);
+        private HashMap<String, ArrayList<DeviceNode>> ids;
+    }
+
+    ChildIndex(DeviceNode owner) {
+        this.owner = owner;
+    }
+
+    void add(DeviceNode child) {
+        int order = nextOrder++;
+        if (child.parent == owner) {
+            child.siblingOrder = order;
+        } else {
+            keepOrder(child, order);
+        }
+        index(child);
+    }
+
+    // the child is being attached to another parent, which will write its own
+    // siblingOrder; keep the one this index knows it by
+    void release(DeviceNode child) {
+        Group group = groups.get(child.getName());
+        if (group != null && group.nodes.contains(child)) {
+            keepOrder(child, order(child));
+        }
+    }
+
+    private void keepOrder(DeviceNode child, int order) {
+        if (foreignOrders == null) {
+            foreignOrders = new IdentityHashMap<>();
+        }
+        foreignOrders.put(child, order);
+    }
+
+    private void index(DeviceNode child) {
+        Group group = groups.get(child.getName());
+        if (group == null) {
+            group = new Group();
+            groups.put(child.getName(), group);
+        }
+        insert(group.nodes, child);
+        addId(group, child, child.getAttribute("_id"));
+    }
+
+    void remove(DeviceNode child) {
+        Group group = groups.get(child.getName());
+        if (group == null) {
+            return;
+        }
+
+        group.nodes.remove(child);
+        removeId(group, child, child.getAttribute("_id"));
+        if (group.nodes.isEmpty()) {
+            groups.remove(child.getName());
+        }
+        if (foreignOrders != null) {
+            foreignOrders.remove(child);
+        }
+    }
+
+    // drop every child with this name
+    void removeAll(String name) {
+        Group group = groups.remove(name);
+        if (group != null && foreignOrders != null) {
+            for (DeviceNode child : group.nodes) {
+                foreignOrders.remove(child);
+            }
+        }
+    }
+
+    // called after the child's _id attribute was changed from oldId
+    void idChanged(DeviceNode child, String oldId) {
+        Group group = groups.get(child.getName());
+        if (group == null || !group.nodes.contains(child)) {
+            return;
+        }
+
+        removeId(group, child, oldId);
+        addId(group, child, child.getAttribute("_id"));
+    }
+
+    // called after the child was renamed from oldName
+    void nameChanged(DeviceNode child, String oldName) {
+        Group group = groups.get(oldName);
+        if (group == null || !group.nodes.remove(child)) {
+            return;
+        }
+
+        removeId(group, child, child.getAttribute("_id"));
+        if (group.nodes.isEmpty()) {
+            groups.remove(oldName);
+        }
+
+        // keeps the original sibling order under the new name
+        index(child);
+    }
+
+    // live list of the children with this name, or null if there are none
+    List<DeviceNode> get(String name) {
+        Group group = groups.get(name);
+        return group != null ? group.nodes : null;
+    }
+
+    DeviceNode first(String name) {
+        Group group = groups.get(name);
+        return group != null ? group.nodes.get(0) : null;
+    }
+
+    // first child with this name whose trimmed _id equals id
+    DeviceNode get(String name, String id) {
+        List<DeviceNode> nodes = getById(name, id);
+        return nodes != null ? nodes.get(0) : null;
+    }
+
+    // live list of the children with this name whose trimmed _id equals id, or null
+    List<DeviceNode> getById(String name, String id) {
+        Group group = groups.get(name);
+        if (group == null || group.ids == null) {
+            return null;
+        }
+
+        return group.ids.get(id);
+    }
+
+    // first child (of any name) whose _id equals id
+    DeviceNode getById(String id) {
+        DeviceNode ret = null;
+        for (Group group : groups.values()) {
+            if (group.ids == null) {
+                continue;
+            }
+
+            ArrayList<DeviceNode> nodes = group.ids.get(id.trim());
+            if (nodes == null) {
+                continue;
+            }
+
+            for (DeviceNode child : nodes) {
+                if (id.equals(child.getAttribute("_id"))) {
+                    if (ret == null || before(child, ret)) {
+                        ret = child;
+                    }
+                    break;
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    // first child matching the node per DeviceNode.compareTo()
+    DeviceNode match(DeviceNode node) {
+        Group group = groups.get(node.getName());
+        if (group == null) {
+            return null;
+        }
+
+        String id = node.getAttribute("_id");
+        if (id == null) {
+            return group.nodes.get(0);
+        }
+
+        // a child with the same _id or a child with no _id at all both match
+        DeviceNode ret = group.unidentified.isEmpty() ? null : group.unidentified.get(0);
+        ArrayList<DeviceNode> nodes = group.ids != null ? group.ids.get(id.trim()) : null;
+        if (nodes != null) {
+            for (DeviceNode child : nodes) {
+                if (id.equals(child.getAttribute("_id"))) {
+                    if (ret == null || before(child, ret)) {
+                        ret = child;
+                    }
+                    break;
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    private void addId(Group group, DeviceNode child, String id) {
+        if (id == null) {
+            insert(group.unidentified, child);
+            return;
+        }
+
+        if (group.ids == null) {
+            group.ids = new HashMap<>();
+        }
+        ArrayList<DeviceNode> nodes = group.ids.get(id.trim());
+        if (nodes == null) {
+            nodes = new ArrayList<>(1);
+            group.ids.put(id.trim(), nodes);
+        }
+        insert(nodes, child);
+    }
+
+    private static void removeId(Group group, DeviceNode child, String id) {
+        if (id == null) {
+            group.unidentified.remove(child);
+            return;
+        }
+
+        ArrayList<DeviceNode> nodes = group.ids != null ? group.ids.get(id.trim()) : null;
+        if (nodes != null) {
+            nodes.remove(child);
+            if (nodes.isEmpty()) {
+                group.ids.remove(id.trim());
+            }
+        }
+    }
+
+    // keep the list in child order; appends are the common case
+    private void insert(ArrayList<DeviceNode> nodes, DeviceNode child) {
+        int idx = nodes.size();
+        while (idx > 0 && before(child, nodes.get(idx - 1))) {
+            idx--;
+        }
+        nodes.add(idx, child);
+    }
+
+    private boolean before(DeviceNode a, DeviceNode b) {
+        return order(a) - order(b) < 0;
+    }
+
+    private int order(DeviceNode child) {
+        if (foreignOrders != null) {
+            Integer order = foreignOrders.get(child);
+            if (order != null) {
+                return order;
+            }
+        }
+        return child.siblingOrder;
+    }
+}
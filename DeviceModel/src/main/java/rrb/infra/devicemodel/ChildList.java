@@ -0,0 +1,236 @@
+package rrb.infra.devicemodel;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+// Children of a DeviceNode, in place of a CopyOnWriteArrayList that copied
+// the whole array on every add. Appends go into spare room at the end of the
+// array, which doubles when it fills up; removals still copy. A slot below
+// end is never written twice, so an iterator is a snapshot of the list as it
+// was when the iterator was made, like CopyOnWriteArrayList's. Writers lock
+// the list itself, the same monitor as DeviceNode's synchronized (children)
+// blocks; readers don't lock.
+final class ChildList extends AbstractList<DeviceNode> implements RandomAccess {
+    private static final DeviceNode[] EMPTY = new DeviceNode[0];
+    private static final int MIN_CAPACITY = 4;
+
+    // the node these are the children of; only its children's slots are kept
+    private final DeviceNode owner;
+
+    // slots [0, end) hold the children; a new array is always published
+    // before the end that goes with it
+    private volatile DeviceNode[] array = EMPTY;
+    private volatile int end;
+
+    ChildList(DeviceNode owner) {
+        this.owner = owner;
+    }
+
+    @Override
+    public int size() {
+        return end;
+    }
+
+    @Override
+    public DeviceNode get(int index) {
+        // a removal may have published a shorter array since end was read
+        int bound = end;
+        DeviceNode[] a = array;
+        if (index >= 0 && index < bound && index < a.length) {
+            DeviceNode child = a[index];
+            if (child != null) {
+                return child;
+            }
+        }
+
+        synchronized (this) {
+            if (index < 0 || index >= end) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + end);
+            }
+            return array[index];
+        }
+    }
+
+    @Override
+    public boolean add(DeviceNode child) {
+        if (child == null) {
+            throw new NullPointerException();
+        }
+
+        synchronized (this) {
+            DeviceNode[] a = array;
+            int slot = end;
+            if (slot == a.length) {
+                // a bigger copy; iterators keep the old one
+                DeviceNode[] grown = new DeviceNode[Math.max(MIN_CAPACITY, slot * 2)];
+                System.arraycopy(a, 0, grown, 0, slot);
+                a = grown;
+                array = a;
+            }
+
+            a[slot] = child;
+            if (child.parent == owner) {
+                child.childSlot = slot;
+            }
+            end = slot + 1;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        synchronized (this) {
+            int slot = slotOf(o);
+            if (slot < 0) {
+                return false;
+            }
+
+            boolean[] removed = new boolean[end];
+            removed[slot] = true;
+            copyWithout(removed, 1);
+        }
+        return true;
+    }
+
+    @Override
+    public DeviceNode remove(int index) {
+        synchronized (this) {
+            DeviceNode child = get(index);
+            remove(child);
+            return child;
+        }
+    }
+
+    // one copy for all of them
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        synchronized (this) {
+            boolean[] removed = new boolean[end];
+            int count = 0;
+            for (Object o : c) {
+                int slot = slotOf(o);
+                if (slot >= 0 && !removed[slot]) {
+                    removed[slot] = true;
+                    count++;
+                }
+            }
+            if (count == 0) {
+                return false;
+            }
+            copyWithout(removed, count);
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        synchronized (this) {
+            array = EMPTY;
+            end = 0;
+        }
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        synchronized (this) {
+            return slotOf(o);
+        }
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        // a child is only ever in the list once
+        return indexOf(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        synchronized (this) {
+            return slotOf(o) >= 0;
+        }
+    }
+
+    @Override
+    public Iterator<DeviceNode> iterator() {
+        // end before array; a newer array only has nulls past its own end
+        final int bound = end;
+        final DeviceNode[] a = array;
+        final int limit = Math.min(bound, a.length);
+
+        return new Iterator<DeviceNode>() {
+            private int idx;
+
+            @Override
+            public boolean hasNext() {
+                return idx < limit && a[idx] != null;
+            }
+
+            @Override
+            public DeviceNode next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return a[idx++];
+            }
+        };
+    }
+
+    // for walking the slots without an iterator: read end() before array(),
+    // as iterator() does, and stop at a null slot
+    int end() {
+        return end;
+    }
+
+    DeviceNode[] array() {
+        return array;
+    }
+
+    // must hold the lock; the child's slot, or -1 if it isn't in the list
+    private int slotOf(Object o) {
+        if (!(o instanceof DeviceNode)) {
+            return -1;
+        }
+
+        DeviceNode child = (DeviceNode) o;
+        DeviceNode[] a = array;
+        int slot = child.childSlot;
+        if (slot >= 0 && slot < end && a[slot] == child) {
+            return slot;
+        }
+
+        // not recorded for this list; the node was attached somewhere else since
+        for (int idx = 0; idx < end; idx++) {
+            if (a[idx] == child) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+    // must hold the lock; publish a copy without the removed slots, keeping
+    // the capacity unless the list shrank to a quarter of it
+    private void copyWithout(boolean[] removed, int count) {
+        DeviceNode[] a = this.array;
+        int size = end - count;
+        int capacity = size * 4 < a.length ? Math.max(MIN_CAPACITY, size * 2) : a.length;
+        DeviceNode[] ret = new DeviceNode[capacity];
+
+        int next = 0;
+        for (int idx = 0; idx < end; idx++) {
+            if (removed[idx]) {
+                continue;
+            }
+            DeviceNode child = a[idx];
+            if (child.parent == owner) {
+                child.childSlot = next;
+            }
+            ret[next++] = child;
+        }
+
+        this.array = ret;
+        this.end = next;
+    }
+}
@@ -0,0 +1,182 @@
+package rrb.infra.devicemodel;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Wraps a listener so a burst of events is merged into one change tree (last
+// value wins, nodes matched by canonical path) and delivered once per window,
+// per maxBatch events or on flush(), whichever comes first.
+public class CoalescingChangeListener implements PropertyChangeListener {
+    private static ScheduledExecutorService scheduler;
+
+    private final PropertyChangeListener listener;
+    // 0 to only flush on maxBatch or flush()
+    private final long windowMillis;
+    // 0 for no limit
+    private final int maxBatch;
+
+    // held while delivering so aggregates go out in order
+    private final Object deliveryLock = new Object();
+
+    // guarded by this
+    private DeviceNode pending;
+    // every node in pending by its path below the listener's node
+    private final HashMap<String, DeviceNode> pendingNodes = new HashMap<>();
+    private Object source;
+    private int pendingCount;
+    private long windowId;
+
+    public CoalescingChangeListener(PropertyChangeListener listener, long windowMillis, int maxBatch) {
+        if (windowMillis < 0 || maxBatch < 0) {
+            throw new IllegalArgumentException("Window and batch size can't be negative");
+        }
+
+        this.listener = listener;
+        this.windowMillis = windowMillis;
+        this.maxBatch = maxBatch;
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "DeviceNode-coalescing");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return scheduler;
+    }
+
+    public PropertyChangeListener getListener() {
+        return listener;
+    }
+
+    @Override
+    public void propertyChange(PropertyChangeEvent evt) {
+        if (!(evt.getNewValue() instanceof DeviceNode)) {
+            listener.propertyChange(evt);
+            return;
+        }
+
+        DeviceNode change = (DeviceNode) evt.getNewValue();
+        boolean full;
+        synchronized (this) {
+            if (pending == null) {
+                // copy it; the record is shared with the other listeners
+                pending = change.get();
+                source = evt.getSource();
+                index(pending, key("", pending));
+
+                if (windowMillis > 0) {
+                    final long id = ++windowId;
+                    getScheduler().schedule(() -> flushWindow(id), windowMillis, TimeUnit.MILLISECONDS);
+                }
+            } else {
+                merge(change, "", null);
+            }
+
+            pendingCount++;
+            full = maxBatch > 0 && pendingCount >= maxBatch;
+        }
+
+        if (full) {
+            flush();
+        }
+    }
+
+    private void flushWindow(long id) {
+        synchronized (this) {
+            // already flushed by batch size or flush() and maybe a new window started
+            if (id != windowId) {
+                return;
+            }
+        }
+        flush();
+    }
+
+    // deliver whatever is pending now; call at the end of a batch of writes
+    public void flush() {
+        synchronized (deliveryLock) {
+            DeviceNode aggregate;
+            Object from;
+            synchronized (this) {
+                if (pending == null) {
+                    return;
+                }
+
+                aggregate = pending;
+                from = source;
+                pending = null;
+                pendingNodes.clear();
+                source = null;
+                pendingCount = 0;
+                windowId++;
+            }
+
+            try {
+                listener.propertyChange(new PropertyChangeEvent(from, DeviceNode.PROPERTY_CHANGE_NAME, null, aggregate));
+            } catch (RuntimeException ex) {
+                Logger.getLogger(CoalescingChangeListener.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+// *********************************************** //
+// Merging
+// *********************************************** //
+    // must hold this; parent is the pending node the change's parent
+    // merged into, null for the top of the change record
+    private void merge(DeviceNode change, String parentKey, DeviceNode parent) {
+        String key = key(parentKey, change);
+        DeviceNode node = pendingNodes.get(key);
+        if (node == null) {
+            if (parent == null) {
+                // the top is always the listener's node; only a rename gets here
+                return;
+            }
+            // not pending yet, take a copy of the whole subtree
+            node = change.get();
+            parent.addChild(node);
+            index(node, key);
+            return;
+        }
+
+        // same value and attributes update() would give, last value wins; the
+        // _id is the pending one, as update() compares it untrimmed
+        DeviceNode update = change.cloneShallow();
+        String id = node.getAttribute("_id");
+        if (id != null) {
+            update.addAttribute("_id", id);
+        }
+        node.update(update);
+
+        for (DeviceNode child : change.getChildren()) {
+            merge(child, key, node);
+        }
+    }
+
+    // must hold this
+    private void index(DeviceNode node, String key) {
+        pendingNodes.put(key, node);
+        for (DeviceNode child : node.getChildren()) {
+            index(child, key(key, child));
+        }
+    }
+
+    private static String key(String parentKey, DeviceNode node) {
+        StringBuilder sb = new StringBuilder(parentKey);
+        NodeCursor.appendStep(sb, node);
+        return sb.toString();
+    }
+
+    // number of events merged into the pending aggregate
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+}
@@ -0,0 +1,1124 @@
+package rrb.infra.devicemodel;
+
+import java.beans.PropertyChangeSupport;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+// A tree stored as parallel columns indexed by node id (name symbol, parent,
+// range of children, value, attributes) instead of an object per node; the int
+// columns can be off-heap. Node handles are TreeNodes like DeviceNode, but
+// anything needing a DeviceNode itself takes toDeviceNode(), which copies.
+// Listeners are per tree; no handlers, snapshots, journals or lazy subtrees.
+public final class CompactDeviceTree {
+    private static final int NONE = -1;
+    // parent of a removed node
+    private static final int REMOVED = -2;
+    private static final int INITIAL_CAPACITY = 16;
+    // returned by updateNode() when something changed but no record was built
+    private static final DeviceNode UNRECORDED = new DeviceNode("");
+    // children a node needs before its children get a ChildTable
+    private static final int INDEX_MIN = 16;
+
+    private final boolean direct;
+    private final PropertyChangeSupport changeSupport = new PropertyChangeSupport(this);
+
+    // readers take the read lock (or read optimistically, see the id
+    // accessors), anything that changes the tree the write lock; not
+    // reentrant, and listeners are always called with neither held
+    private final StampedLock lock = new StampedLock();
+
+    // one slot per node id, all guarded by lock
+    private IntBuffer nameIds;
+    private IntBuffer parents;
+    private IntBuffer firstChildren;
+    private IntBuffer childCounts;
+    private IntBuffer childSlots;
+    private String[] values;
+    // attribute state per node, see Attributes
+    private Object[] attributes;
+    private int nodeCount;
+    private int liveCount;
+
+    // each node's children as a range of node ids
+    private IntBuffer childIds;
+    private int childIdsEnd;
+
+    // names by symbol, and symbols by name
+    private final ArrayList<String> symbols = new ArrayList<>();
+    private final HashMap<String, Integer> symbolIds = new HashMap<>();
+
+    // child tables by parent id, for parents with many children; built on
+    // first search, which may be under the read lock, so the map is concurrent
+    private final ConcurrentHashMap<Integer, ChildTable> childTables = new ConcurrentHashMap<>();
+
+    // A parent's children by name symbol and _id, for findChild(). A parent's
+    // children are always in ascending id order (new nodes get the next id
+    // and are appended), so the first match is the one with the lowest id.
+    // Appends are added in place; removals and _id changes drop the table,
+    // which is built again on the next search.
+    private static final class ChildTable {
+        private final HashMap<Integer, Group> groups = new HashMap<>();
+
+        // the children sharing one name
+        private static final class Group {
+            private int first = NONE;
+            private int firstUnidentified = NONE;
+            private final HashMap<String, Integer> ids = new HashMap<>();
+        }
+
+        private void add(int child, int symbol, String id) {
+            Group group = groups.get(symbol);
+            if (group == null) {
+                group = new Group();
+                groups.put(symbol, group);
+            }
+            if (group.first == NONE) {
+                group.first = child;
+            }
+            if (id == null) {
+                if (group.firstUnidentified == NONE) {
+                    group.firstUnidentified = child;
+                }
+            } else {
+                group.ids.putIfAbsent(id, child);
+            }
+        }
+
+        // same match as findChild()'s scan
+        private int find(int symbol, String id) {
+            Group group = groups.get(symbol);
+            if (group == null) {
+                return NONE;
+            }
+            if (id == null) {
+                return group.first;
+            }
+
+            // a child with the same _id or a child with no _id at all both match
+            Integer identified = group.ids.get(id);
+            if (identified == null) {
+                return group.firstUnidentified;
+            }
+            if (group.firstUnidentified == NONE) {
+                return identified;
+            }
+            return Math.min(identified, group.firstUnidentified);
+        }
+    }
+
+    public CompactDeviceTree(DeviceNode root) {
+        this(root, false);
+    }
+
+    // direct keeps the int columns in direct (off-heap) buffers
+    public CompactDeviceTree(DeviceNode root, boolean direct) {
+        this(direct, INITIAL_CAPACITY);
+        copy(root, NONE);
+    }
+
+    private CompactDeviceTree(boolean direct, int capacity) {
+        this.direct = direct;
+        this.nameIds = newColumn(capacity);
+        this.parents = newColumn(capacity);
+        this.firstChildren = newColumn(capacity);
+        this.childCounts = newColumn(capacity);
+        this.childSlots = newColumn(capacity);
+        this.values = new String[capacity];
+        this.attributes = new Object[capacity];
+        this.childIds = newColumn(capacity);
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public Node getRoot() {
+        return new Node(0);
+    }
+
+    // live nodes in the tree
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return liveCount;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public PropertyChangeSupport getChangeSupport() {
+        return changeSupport;
+    }
+
+    public DeviceNode toDeviceNode() {
+        long stamp = lock.readLock();
+        try {
+            return toDeviceNode(0);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // a copy of this tree laid out afresh, without the slots left by removed
+    // nodes and moved child ranges; handles into this tree don't carry over
+    public CompactDeviceTree compact() {
+        long stamp = lock.readLock();
+        try {
+            CompactDeviceTree ret = new CompactDeviceTree(direct, Math.max(INITIAL_CAPACITY, liveCount));
+            int[] order = new int[liveCount];
+            int end = 0;
+            order[end++] = 0;
+            ret.addNode(name(0), values[0], attributes[0], NONE);
+            for (int pos = 0; pos < end; pos++) {
+                int source = order[pos];
+                int count = childCounts.get(source);
+                ret.reserveChildren(pos, count);
+                for (int idx = 0; idx < count; idx++) {
+                    int child = childIds.get(firstChildren.get(source) + idx);
+                    ret.appendChildId(pos, ret.addNode(name(child), values[child], attributes[child], pos));
+                    order[end++] = child;
+                }
+            }
+            return ret;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+// *********************************************** //
+// Column storage
+// *********************************************** //
+    private IntBuffer newColumn(int capacity) {
+        if (direct) {
+            return ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        return IntBuffer.allocate(capacity);
+    }
+
+    private IntBuffer grow(IntBuffer column, int used, int capacity) {
+        IntBuffer ret = newColumn(capacity);
+        IntBuffer source = column.duplicate();
+        source.position(0);
+        source.limit(used);
+        ret.put(source);
+        ret.position(0);
+        return ret;
+    }
+
+    private int symbol(String name) {
+        Integer ret = symbolIds.get(name);
+        if (ret == null) {
+            ret = symbols.size();
+            name = Names.canonical(name);
+            symbols.add(name);
+            symbolIds.put(name, ret);
+        }
+        return ret;
+    }
+
+    // symbol of a name some node has had, or NONE
+    private int findSymbol(String name) {
+        Integer ret = name != null ? symbolIds.get(name) : null;
+        return ret != null ? ret : NONE;
+    }
+
+    private int addNode(String name, String value, Object attributeState, int parent) {
+        if (nodeCount == values.length) {
+            int capacity = values.length * 2;
+            nameIds = grow(nameIds, nodeCount, capacity);
+            parents = grow(parents, nodeCount, capacity);
+            firstChildren = grow(firstChildren, nodeCount, capacity);
+            childCounts = grow(childCounts, nodeCount, capacity);
+            childSlots = grow(childSlots, nodeCount, capacity);
+            values = Arrays.copyOf(values, capacity);
+            attributes = Arrays.copyOf(attributes, capacity);
+        }
+
+        int id = nodeCount++;
+        nameIds.put(id, symbol(name));
+        parents.put(id, parent);
+        firstChildren.put(id, 0);
+        childCounts.put(id, 0);
+        childSlots.put(id, 0);
+        values[id] = value;
+        attributes[id] = Attributes.copy(attributeState);
+        liveCount++;
+        return id;
+    }
+
+    // make room at the end of the child id column
+    private void ensureChildIds(int extra) {
+        if (childIdsEnd + extra > childIds.capacity()) {
+            childIds = grow(childIds, childIdsEnd, Math.max(childIds.capacity() * 2, childIdsEnd + extra));
+        }
+    }
+
+    // give a node without children an exactly sized range
+    private void reserveChildren(int parent, int count) {
+        ensureChildIds(count);
+        firstChildren.put(parent, childIdsEnd);
+        childSlots.put(parent, count);
+        childIdsEnd += count;
+    }
+
+    private void appendChildId(int parent, int child) {
+        int first = firstChildren.get(parent);
+        int count = childCounts.get(parent);
+        int slots = childSlots.get(parent);
+        if (count == slots) {
+            int grown = Math.max(2, slots * 2);
+            if (first + slots == childIdsEnd && slots > 0) {
+                // already at the end; just extend it
+                ensureChildIds(grown - slots);
+            } else {
+                // move the range to the end, with room to grow
+                ensureChildIds(grown);
+                for (int idx = 0; idx < count; idx++) {
+                    childIds.put(childIdsEnd + idx, childIds.get(first + idx));
+                }
+                first = childIdsEnd;
+                firstChildren.put(parent, first);
+            }
+            childIdsEnd = first + grown;
+            childSlots.put(parent, grown);
+        }
+
+        childIds.put(first + count, child);
+        childCounts.put(parent, count + 1);
+
+        ChildTable table = childTables.isEmpty() ? null : childTables.get(parent);
+        if (table != null) {
+            table.add(child, nameIds.get(child), Attributes.get(attributes[child], "_id"));
+        }
+    }
+
+    // copy a DeviceNode subtree in under parent, breadth first; returns its id
+    private int copy(DeviceNode source, int parent) {
+        int root = addNode(source.getName(), source.getValue(), source.getAttributePairs(), parent);
+        if (parent != NONE) {
+            appendChildId(parent, root);
+        }
+
+        // ids are handed out in queue order, so the node at pos has id root + pos
+        ArrayList<DeviceNode> queue = new ArrayList<>();
+        queue.add(source);
+        for (int pos = 0; pos < queue.size(); pos++) {
+            DeviceNode node = queue.set(pos, null);
+            int id = root + pos;
+            List<DeviceNode> children = node.getChildren();
+            if (children.isEmpty()) {
+                continue;
+            }
+
+            reserveChildren(id, children.size());
+            for (DeviceNode child : children) {
+                appendChildId(id, addNode(child.getName(), child.getValue(), child.getAttributePairs(), id));
+                queue.add(child);
+            }
+        }
+        return root;
+    }
+
+    // remove a child from its parent's range and mark its subtree removed
+    private void detach(int child) {
+        int parent = parents.get(child);
+        int first = firstChildren.get(parent);
+        int count = childCounts.get(parent);
+        for (int idx = 0; idx < count; idx++) {
+            if (childIds.get(first + idx) == child) {
+                for (int next = idx + 1; next < count; next++) {
+                    childIds.put(first + next - 1, childIds.get(first + next));
+                }
+                childCounts.put(parent, count - 1);
+                break;
+            }
+        }
+        dropChildTable(parent);
+
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top++] = child;
+        while (top > 0) {
+            int id = stack[--top];
+            parents.put(id, REMOVED);
+            values[id] = null;
+            attributes[id] = Attributes.EMPTY;
+            liveCount--;
+            dropChildTable(id);
+
+            int grandchildren = childCounts.get(id);
+            if (top + grandchildren > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + grandchildren));
+            }
+            for (int idx = 0; idx < grandchildren; idx++) {
+                stack[top++] = childIds.get(firstChildren.get(id) + idx);
+            }
+            childCounts.put(id, 0);
+        }
+    }
+
+    private boolean live(int id) {
+        return id >= 0 && id < nodeCount && parents.get(id) != REMOVED;
+    }
+
+    private void checkLive(int id) {
+        if (!live(id)) {
+            throw new IllegalStateException("Node " + id + " is not in the tree");
+        }
+    }
+
+// *********************************************** //
+// Node access by id
+// *********************************************** //
+    // the fast path for walking the tree; ids are stable until compact().
+    // These try an optimistic read first, the same as DeviceNode.getValue().
+    // A write between the reads can leave us looking at a column that has
+    // since grown or a slot that has since changed, which validate() catches;
+    // anything that throws meanwhile is retried under the read lock, which
+    // also gives the real exception for a node that isn't in the tree
+
+    public String getName(int id) {
+        long stamp = lock.tryOptimisticRead();
+        try {
+            if (live(id)) {
+                String ret = name(id);
+                if (lock.validate(stamp)) {
+                    return ret;
+                }
+            }
+        } catch (RuntimeException ex) {
+            // half written; read it again below
+        }
+
+        stamp = lock.readLock();
+        try {
+            checkLive(id);
+            return name(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private String name(int id) {
+        return symbols.get(nameIds.get(id));
+    }
+
+    public String getValue(int id) {
+        long stamp = lock.tryOptimisticRead();
+        try {
+            if (live(id)) {
+                String ret = values[id];
+                if (lock.validate(stamp)) {
+                    return ret;
+                }
+            }
+        } catch (RuntimeException ex) {
+            // half written; read it again below
+        }
+
+        stamp = lock.readLock();
+        try {
+            checkLive(id);
+            return values[id];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public String getAttribute(int id, String name) {
+        // attribute states are never changed once published, so only
+        // fetching the state needs to be consistent
+        long stamp = lock.tryOptimisticRead();
+        try {
+            if (live(id)) {
+                Object state = attributes[id];
+                if (lock.validate(stamp)) {
+                    return Attributes.get(state, name);
+                }
+            }
+        } catch (RuntimeException ex) {
+            // half written; read it again below
+        }
+
+        stamp = lock.readLock();
+        try {
+            checkLive(id);
+            return Attributes.get(attributes[id], name);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private Object getAttributeState(int id) {
+        long stamp = lock.readLock();
+        try {
+            return attributes[id];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // parent's id, or -1 for the root
+    public int getParent(int id) {
+        long stamp = lock.tryOptimisticRead();
+        try {
+            if (live(id)) {
+                int ret = parents.get(id);
+                if (lock.validate(stamp)) {
+                    return ret;
+                }
+            }
+        } catch (RuntimeException ex) {
+            // half written; read it again below
+        }
+
+        stamp = lock.readLock();
+        try {
+            checkLive(id);
+            return parents.get(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int getChildCount(int id) {
+        long stamp = lock.tryOptimisticRead();
+        try {
+            if (live(id)) {
+                int ret = childCounts.get(id);
+                if (lock.validate(stamp)) {
+                    return ret;
+                }
+            }
+        } catch (RuntimeException ex) {
+            // half written; read it again below
+        }
+
+        stamp = lock.readLock();
+        try {
+            checkLive(id);
+            return childCounts.get(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // id of the idx'th child
+    public int getChild(int id, int idx) {
+        long stamp = lock.tryOptimisticRead();
+        try {
+            if (live(id) && idx >= 0 && idx < childCounts.get(id)) {
+                int ret = childIds.get(firstChildren.get(id) + idx);
+                if (lock.validate(stamp)) {
+                    return ret;
+                }
+            }
+        } catch (RuntimeException ex) {
+            // half written; read it again below
+        }
+
+        stamp = lock.readLock();
+        try {
+            checkLive(id);
+            if (idx < 0 || idx >= childCounts.get(id)) {
+                throw new IndexOutOfBoundsException("Child " + idx + " of " + childCounts.get(id));
+            }
+            return childIds.get(firstChildren.get(id) + idx);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // first child matching name and _id the way DeviceNode.compareTo() does, or NONE
+    private int findChild(int parent, String name, String id) {
+        int symbol = findSymbol(name);
+        if (symbol == NONE) {
+            return NONE;
+        }
+
+        int first = firstChildren.get(parent);
+        int count = childCounts.get(parent);
+        if (count >= INDEX_MIN) {
+            return childTable(parent).find(symbol, id);
+        }
+        for (int idx = 0; idx < count; idx++) {
+            int child = childIds.get(first + idx);
+            if (nameIds.get(child) == symbol) {
+                String childId = Attributes.get(attributes[child], "_id");
+                if (id == null || childId == null || childId.compareTo(id) == 0) {
+                    return child;
+                }
+            }
+        }
+        return NONE;
+    }
+
+    // a table is complete before any reader sees it, and after that only
+    // changes under the write lock
+    private ChildTable childTable(int parent) {
+        ChildTable ret = childTables.get(parent);
+        if (ret == null) {
+            ret = childTables.computeIfAbsent(parent, key -> {
+                ChildTable table = new ChildTable();
+                int first = firstChildren.get(key);
+                int count = childCounts.get(key);
+                for (int idx = 0; idx < count; idx++) {
+                    int child = childIds.get(first + idx);
+                    table.add(child, nameIds.get(child), Attributes.get(attributes[child], "_id"));
+                }
+                return table;
+            });
+        }
+        return ret;
+    }
+
+    private void dropChildTable(int parent) {
+        if (!childTables.isEmpty()) {
+            childTables.remove(parent);
+        }
+    }
+
+    // set an attribute, keeping the parent's child table in step with the _id
+    private void putAttribute(int id, String name, String attribute) {
+        String oldId = "_id".equals(name) ? Attributes.get(attributes[id], "_id") : null;
+        attributes[id] = Attributes.put(attributes[id], name, attribute);
+        if ("_id".equals(name) && !attribute.equals(oldId) && parents.get(id) >= 0) {
+            dropChildTable(parents.get(id));
+        }
+    }
+
+    private boolean idMatches(int node, String id) {
+        if (id == null) {
+            return true;
+        }
+
+        // Make sure we even have an id to check against.
+        String nodeId = Attributes.get(attributes[node], "_id");
+        if (nodeId == null || nodeId.trim().length() == 0 || id.trim().length() == 0) {
+            return false;
+        }
+
+        return nodeId.trim().equals(id);
+    }
+
+    private String getNodePath(int id) {
+        ArrayList<Integer> path = new ArrayList<>();
+        for (int node = id; node != NONE; node = parents.get(node)) {
+            path.add(node);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int idx = path.size() - 1; idx >= 0; idx--) {
+            int node = path.get(idx);
+            sb.append("/").append(name(node));
+            String nodeId = Attributes.get(attributes[node], "_id");
+            if (nodeId != null && nodeId.trim().length() > 0) {
+                sb.append("/_").append(nodeId.trim());
+            }
+        }
+        return sb.toString();
+    }
+
+    // detached copy of a node, without children
+    private DeviceNode shallow(int id) {
+        DeviceNode ret = new DeviceNode(name(id), values[id]);
+        Object[] pairs = Attributes.pairs(attributes[id]);
+        for (int idx = 0; idx < pairs.length; idx += 2) {
+            ret.addAttribute((String) pairs[idx], (String) pairs[idx + 1]);
+        }
+        return ret;
+    }
+
+    private DeviceNode toDeviceNode(int id) {
+        DeviceNode ret = shallow(id);
+        int first = firstChildren.get(id);
+        int count = childCounts.get(id);
+        for (int idx = 0; idx < count; idx++) {
+            ret.addChild(toDeviceNode(childIds.get(first + idx)));
+        }
+        return ret;
+    }
+
+// *********************************************** //
+// Path resolution
+// *********************************************** //
+    // same rules as NodePath.resolve(), comparing name symbols instead of strings
+    private void resolve(int from, NodePath path, List<Node> ret, boolean first) {
+        if (!path.isValid()) {
+            return;
+        }
+
+        String[] names = path.names();
+        if (names.length == 0) {
+            ret.add(new Node(from));
+        }
+        else if (names[0].equals(name(from))) {
+            match(from, symbols(names), path.ids(), 0, ret, first);
+        }
+        else if (idMatches(from, path.rootId())) {
+            if (path.relativeNames().length == 0) {
+                ret.add(new Node(from));
+            } else {
+                matchChildren(from, symbols(path.relativeNames()), path.relativeIds(), 0, ret, first);
+            }
+        }
+    }
+
+    private int[] symbols(String[] names) {
+        int[] ret = new int[names.length];
+        for (int idx = 0; idx < names.length; idx++) {
+            ret[idx] = findSymbol(names[idx]);
+        }
+        return ret;
+    }
+
+    private boolean match(int node, int[] names, String[] ids, int idx, List<Node> ret, boolean first) {
+        if (!idMatches(node, ids[idx])) {
+            return false;
+        }
+
+        if (idx == names.length - 1) {
+            ret.add(new Node(node));
+            return first;
+        }
+
+        return matchChildren(node, names, ids, idx + 1, ret, first);
+    }
+
+    private boolean matchChildren(int node, int[] names, String[] ids, int idx, List<Node> ret, boolean first) {
+        if (names[idx] == NONE) {
+            return false;
+        }
+
+        int start = firstChildren.get(node);
+        int count = childCounts.get(node);
+        for (int pos = 0; pos < count; pos++) {
+            int child = childIds.get(start + pos);
+            if (nameIds.get(child) == names[idx] && match(child, names, ids, idx, ret, first)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+// *********************************************** //
+// Updates
+// *********************************************** //
+    // same merge as DeviceNode.updateNode(); returns the change record,
+    // UNRECORDED if something changed but record is false, or null
+    private DeviceNode updateNode(int id, DeviceNode updatedNode, boolean record) {
+        if (nameIds.get(id) != findSymbol(updatedNode.getName())) {
+            return null;
+        }
+        String nodeId = Attributes.get(attributes[id], "_id");
+        String updatedId = updatedNode.getAttribute("_id");
+        if (nodeId != null && updatedId != null && nodeId.compareTo(updatedId) != 0) {
+            return null;
+        }
+
+        boolean changed = false;
+        DeviceNode changeEvent = null;
+
+        // update attributes
+        Object[] attributePairs = updatedNode.getAttributePairs();
+        if (Attributes.size(attributes[id]) < attributePairs.length / 2) {
+            changed = true;
+        }
+        for (int idx = 0; idx < attributePairs.length; idx += 2) {
+            putAttribute(id, (String) attributePairs[idx], (String) attributePairs[idx + 1]);
+        }
+
+        // set value, if needed
+        String value = updatedNode.getValue();
+        if (value != null && !value.equals(values[id])) {
+            values[id] = value;
+            changed = true;
+        }
+
+        if (changed && record) {
+            changeEvent = shallow(id);
+        }
+
+        // merge children; update or add
+        List<DeviceNode> children = updatedNode.getChildren();
+        for (int idx = 0; idx < children.size(); idx++) {
+            DeviceNode child = children.get(idx);
+            boolean added = false;
+
+            int existing = findChild(id, child.getName(), child.getAttribute("_id"));
+            if (existing == NONE) {
+                existing = addNode(child.getName(), child.getValue(), child.getAttributePairs(), id);
+                appendChildId(id, existing);
+                added = true;
+            }
+
+            DeviceNode childUpdate = updateNode(existing, child, record);
+            if (childUpdate != null || added) {
+                changed = true;
+                if (!record) {
+                    continue;
+                }
+
+                if (changeEvent == null) {
+                    changeEvent = shallow(id);
+                }
+                changeEvent.addChild(childUpdate != null ? childUpdate : child.cloneShallow());
+            }
+        }
+
+        if (!changed) {
+            return null;
+        }
+        return changeEvent != null ? changeEvent : UNRECORDED;
+    }
+
+    // wrap a node's change record in copies of its ancestors, up to the root
+    private DeviceNode toRootRecord(int id, DeviceNode change) {
+        for (int node = parents.get(id); node != NONE; node = parents.get(node)) {
+            DeviceNode wrapper = shallow(node);
+            wrapper.addChild(change);
+            change = wrapper;
+        }
+        return change;
+    }
+
+    private void fire(DeviceNode change) {
+        if (change != null) {
+            changeSupport.firePropertyChange(DeviceNode.PROPERTY_CHANGE_NAME, null, change);
+        }
+    }
+
+    private void update(int id, DeviceNode updatedNode) {
+        DeviceNode change = null;
+        long stamp = lock.writeLock();
+        try {
+            checkLive(id);
+            boolean record = changeSupport.hasListeners(null);
+            DeviceNode nodeChange = updateNode(id, updatedNode, record);
+            if (nodeChange != null && nodeChange != UNRECORDED) {
+                change = toRootRecord(id, nodeChange);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        // listeners run outside the tree lock
+        fire(change);
+    }
+
+    private int addChild(int id, DeviceNode child, boolean fireUpdate) {
+        if (fireUpdate) {
+            // merge it in as an update of this node, same as DeviceNode
+            DeviceNode wrapper;
+            long stamp = lock.readLock();
+            try {
+                checkLive(id);
+                wrapper = shallow(id);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            wrapper.addChild(child);
+            update(id, wrapper);
+
+            stamp = lock.readLock();
+            try {
+                return findChild(id, child.getName(), child.getAttribute("_id"));
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            checkLive(id);
+            return copy(child, id);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // same choice of children as DeviceNode.removeChild(name, id)
+    private void removeChild(int id, String name, String childId) {
+        List<DeviceNode> changes = new ArrayList<>();
+        long stamp = lock.writeLock();
+        try {
+            checkLive(id);
+            boolean record = changeSupport.hasListeners(null);
+            int symbol = findSymbol(name);
+            boolean all = childId == null || childId.trim().length() == 0;
+
+            // every child with the name, or just the first with the id
+            List<Integer> removing = new ArrayList<>();
+            for (int idx = 0; idx < childCounts.get(id) && symbol != NONE; idx++) {
+                int child = childIds.get(firstChildren.get(id) + idx);
+                if (nameIds.get(child) == symbol && (all || idMatches(child, childId))) {
+                    removing.add(child);
+                    if (!all) {
+                        break;
+                    }
+                }
+            }
+
+            for (int child : removing) {
+                if (record) {
+                    DeviceNode removed = shallow(child);
+                    removed.addAttribute("_action", "remove");
+                    changes.add(toRootRecord(child, removed));
+                }
+                detach(child);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        for (DeviceNode change : changes) {
+            fire(change);
+        }
+    }
+
+// *********************************************** //
+// Node handle
+// *********************************************** //
+    // a node of the tree, by id; any number of handles can point at one node
+    public final class Node implements TreeNode<Node> {
+        private final int id;
+
+        private Node(int id) {
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public CompactDeviceTree getTree() {
+            return CompactDeviceTree.this;
+        }
+
+        public String getName() {
+            return CompactDeviceTree.this.getName(id);
+        }
+
+        public String getValue() {
+            return CompactDeviceTree.this.getValue(id);
+        }
+
+        // sets the value without firing an event, like DeviceNode.setValue()
+        public Node setValue(String value) {
+            long stamp = lock.writeLock();
+            try {
+                checkLive(id);
+                values[id] = value;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            return this;
+        }
+
+        public String getAttribute(String name) {
+            return CompactDeviceTree.this.getAttribute(id, name);
+        }
+
+        // read-only live view
+        public Map<String, String> getAttributes() {
+            return new Attributes.View() {
+                @Override
+                Object state() {
+                    return getAttributeState(id);
+                }
+            };
+        }
+
+        // adds the attribute without firing an event, like DeviceNode.addAttribute()
+        public Node addAttribute(String name, String attribute) {
+            long stamp = lock.writeLock();
+            try {
+                checkLive(id);
+                putAttribute(id, name, attribute);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            return this;
+        }
+
+        public Node getParent() {
+            int parent = CompactDeviceTree.this.getParent(id);
+            return parent != NONE ? new Node(parent) : null;
+        }
+
+        public List<Node> getChildren() {
+            long stamp = lock.readLock();
+            try {
+                checkLive(id);
+                int first = firstChildren.get(id);
+                int count = childCounts.get(id);
+                List<Node> ret = new ArrayList<>(count);
+                for (int idx = 0; idx < count; idx++) {
+                    ret.add(new Node(childIds.get(first + idx)));
+                }
+                return ret;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        public Node getChild(int idx) {
+            long stamp = lock.readLock();
+            try {
+                checkLive(id);
+                if (idx < 0 || idx >= childCounts.get(id)) {
+                    return null;
+                }
+                return new Node(childIds.get(firstChildren.get(id) + idx));
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        public Node getChild(String name) {
+            long stamp = lock.readLock();
+            try {
+                checkLive(id);
+                int child = findChild(id, name, null);
+                return child != NONE ? new Node(child) : null;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        public Node getChild(String name, String childId) {
+            long stamp = lock.readLock();
+            try {
+                checkLive(id);
+                int symbol = findSymbol(name);
+                if (symbol == NONE) {
+                    return null;
+                }
+
+                int first = firstChildren.get(id);
+                int count = childCounts.get(id);
+                int ret = NONE;
+                for (int idx = 0; idx < count; idx++) {
+                    int child = childIds.get(first + idx);
+                    if (nameIds.get(child) != symbol) {
+                        continue;
+                    }
+                    // If an id was passed in, look for that child.
+                    if (childId != null && childId.trim().length() > 0 && idMatches(child, childId)) {
+                        return new Node(child);
+                    }
+                    // Default to just returning the first one.
+                    if (ret == NONE) {
+                        ret = child;
+                    }
+                }
+                return ret != NONE ? new Node(ret) : null;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        public boolean hasChild(String name) {
+            return getChild(name) != null;
+        }
+
+        public String getNodePath() {
+            long stamp = lock.readLock();
+            try {
+                checkLive(id);
+                return CompactDeviceTree.this.getNodePath(id);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        public Node getChildByPath(String path) {
+            return getChildByPath(NodePath.compile(path));
+        }
+
+        public Node getChildByPath(NodePath path) {
+            List<Node> ret = new ArrayList<>(1);
+            long stamp = lock.readLock();
+            try {
+                checkLive(id);
+                resolve(id, path, ret, true);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            return ret.isEmpty() ? null : ret.get(0);
+        }
+
+        public List<Node> searchTree(String path) {
+            List<Node> ret = new ArrayList<>();
+            long stamp = lock.readLock();
+            try {
+                checkLive(id);
+                resolve(id, NodePath.compile(path), ret, false);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            return ret;
+        }
+
+        // merge the update in the same way DeviceNode.update() does, firing the
+        // tree's listeners with the change record if anything changed
+        public void update(DeviceNode updatedNode) {
+            CompactDeviceTree.this.update(id, updatedNode);
+        }
+
+        // copy child and its subtree in under this node
+        public Node addChild(DeviceNode child) {
+            return addChild(child, false);
+        }
+
+        public Node addChild(DeviceNode child, boolean fireUpdate) {
+            int ret = CompactDeviceTree.this.addChild(id, child, fireUpdate);
+            return ret != NONE ? new Node(ret) : null;
+        }
+
+        public void removeChild(String name) {
+            CompactDeviceTree.this.removeChild(id, name, null);
+        }
+
+        public void removeChild(String name, String childId) {
+            CompactDeviceTree.this.removeChild(id, name, childId);
+        }
+
+        // detached DeviceNode copy of this subtree
+        public DeviceNode toDeviceNode() {
+            long stamp = lock.readLock();
+            try {
+                checkLive(id);
+                return CompactDeviceTree.this.toDeviceNode(id);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(CompactDeviceTree.this) * 31 + id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Node)) {
+                return false;
+            }
+
+            Node other = (Node) obj;
+            return other.getTree() == CompactDeviceTree.this && other.id == id;
+        }
+
+        @Override
+        public String toString() {
+            return getNodePath();
+        }
+    }
+}
@@ -1,19 +1,25 @@
 package rrb.infra.devicemodel;
 
+import com.google.protobuf.ByteString;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.StampedLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode> {
+public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode>, TreeNode<DeviceNode> {
 
     public static final String PROPERTY_CHANGE_NAME = "update";
     // listeners will get updates fired when this node's value or children's values change
@@ -21,12 +27,71 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
     // access for the user to set the value at initialization, etc
     // usage of the update(DeviceNode) method is preferred as it will fire updates 
     // and handle all update change aggregation and parent recursion
-    private final PropertyChangeSupport changeSupport = new PropertyChangeSupport(this);
-    protected DeviceNode parent;
-    protected String name;
+    // created on first use by getChangeSupport(); most nodes never have listeners
+    private volatile PropertyChangeSupport changeSupport;
+    // returned by updateNode() when something changed but nobody at or above
+    // that node is listening, so no change record was built
+    private static final DeviceNode UNRECORDED = new DeviceNode("");
+    protected volatile DeviceNode parent;
+    protected volatile String name;
     protected String value;
-    protected final CopyOnWriteArrayList<DeviceNode> children = new CopyOnWriteArrayList<>();
-    protected final ConcurrentHashMap<String, String> attributes = new ConcurrentHashMap<>();
+    // typed values keep their primitive (or raw bytes) form here and only cache
+    // their text form in value once getValue() asks for it
+    private ValueType valueType = ValueType.STRING;
+    private long valueBits;
+    private byte[] valueBytes;
+    // the value fields above are guarded by one of these; see valueLock()
+    private static final int VALUE_LOCK_STRIPES = 256;
+    private static final StampedLock[] VALUE_LOCKS = new StampedLock[VALUE_LOCK_STRIPES];
+    static {
+        for (int idx = 0; idx < VALUE_LOCK_STRIPES; idx++) {
+            VALUE_LOCKS[idx] = new StampedLock();
+        }
+    }
+    private final int lockStripe = ThreadLocalRandom.current().nextInt(VALUE_LOCK_STRIPES);
+    // appends and removals don't copy the list; readers iterate without locking
+    protected final List<DeviceNode> children = new ChildList(this);
+    // EMPTY, an immutable key/value pair array or, for nodes with many
+    // attributes, a map; see Attributes
+    private volatile Object attributes = Attributes.EMPTY;
+    private static final AtomicReferenceFieldUpdater<DeviceNode, Object> ATTRIBUTES =
+            AtomicReferenceFieldUpdater.newUpdater(DeviceNode.class, Object.class, "attributes");
+    // name and (name, _id) lookups into children; guarded by the children lock
+    // and only allocated once this node has children
+    ChildIndex childIndex;
+    // position among the parent's children, maintained by the parent's index;
+    // other indexes holding this node keep their own
+    int siblingOrder;
+    // slot in the parent's ChildList, maintained by that list; other lists
+    // holding this node search for it instead
+    int childSlot = -1;
+    // only meaningful on a root node; bumped whenever a node anywhere in the tree
+    // is added, removed, renamed or has its _id changed, so cached path
+    // resolutions can tell they might be stale
+    private volatile int structureVersion;
+    private static final AtomicIntegerFieldUpdater<DeviceNode> STRUCTURE_VERSION =
+            AtomicIntegerFieldUpdater.newUpdater(DeviceNode.class, "structureVersion");
+    // latest published immutable version of this subtree; null unless snapshot
+    // mode was enabled on this node or one of its ancestors
+    private volatile DeviceSnapshot snapshot;
+    // records this node's value changes; null unless enableJournal() was
+    // called on this node or one of its ancestors
+    private volatile ChangeJournal journal;
+    // this node's path id in the journal, cached by ChangeJournal
+    ChangeJournal.PathId journalPath;
+    // set on nodes whose children are loaded on demand; see setLoader()
+    private volatile Lazy lazy;
+    // indexes this node's attributes; null unless enableIndex() was called on
+    // this node or one of its ancestors
+    private volatile AttributeIndex index;
+    // every change takes a version from VersionClock; version is this node's
+    // latest, subtreeVersion the latest anywhere at or below it
+    private volatile long version;
+    private volatile long subtreeVersion;
+    private static final AtomicLongFieldUpdater<DeviceNode> SUBTREE_VERSION =
+            AtomicLongFieldUpdater.newUpdater(DeviceNode.class, "subtreeVersion");
+    // subtree hash as of some subtreeVersion, see getSubtreeHash()
+    private volatile HashCache hashCache;
 
     // these are access handlers for the node
     // SET: called at set(DeviceNode) when requesting this node's value to change
@@ -45,7 +110,7 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
     }
 
     public DeviceNode(String name, String value) {
-        this.name = name;
+        this.name = Names.canonical(name);
         this.value = value;
     }
 
@@ -78,7 +143,24 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
 // Setter/getter methods
 // *********************************************** //
     protected void setName(String name) {
-        this.name = name;
+        String oldName = this.name;
+        this.name = Names.canonical(name);
+
+        // keep the parent's index pointing at the new name
+        DeviceNode p = this.parent;
+        if (oldName != null && !oldName.equals(name)) {
+            if (p != null) {
+                synchronized (p.children) {
+                    if (p.childIndex != null) {
+                        p.childIndex.nameChanged(this, oldName);
+                    }
+                }
+            }
+            // a root's name is part of every path too
+            this.structureChanged();
+        }
+        touch();
+        publishSnapshots();
     }
 
     public String getName() {
@@ -87,17 +169,290 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
 
     // using this will NOT fire an event, use update() for that
     public void setValue(String value) {
-        this.value = value;
+        setTypedValue(ValueType.STRING, 0, null, value);
+        valueChanged(ValueType.STRING, 0, value);
+        touch();
+        publishSnapshots();
     }
 
+    // the text form; typed values are formatted on first request
     public String getValue() {
-        return value;
+        StampedLock lock = valueLock();
+        long stamp = lock.tryOptimisticRead();
+        String text = this.value;
+        ValueType type = this.valueType;
+        long bits = this.valueBits;
+        byte[] bytes = this.valueBytes;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                text = this.value;
+                type = this.valueType;
+                bits = this.valueBits;
+                bytes = this.valueBytes;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        if (text == null && type != ValueType.STRING) {
+            text = type.format(bits, bytes);
+
+            // cache it, unless someone else holds the lock or changed the value meanwhile
+            long writeStamp = lock.tryWriteLock();
+            if (writeStamp != 0) {
+                if (this.value == null && this.valueType == type && this.valueBits == bits && this.valueBytes == bytes) {
+                    this.value = text;
+                }
+                lock.unlockWrite(writeStamp);
+            }
+        }
+        return text;
+    }
+
+    public ValueType getValueType() {
+        StampedLock lock = valueLock();
+        long stamp = lock.tryOptimisticRead();
+        ValueType type = this.valueType;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                type = this.valueType;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return type;
+    }
+
+    // typed setters; like setValue(), these will NOT fire an event
+    public void setLongValue(long value) {
+        setTypedValue(ValueType.LONG, value, null, null);
+        valueChanged(ValueType.LONG, value, null);
+        touch();
+        publishSnapshots();
+    }
+
+    public void setDoubleValue(double value) {
+        long bits = Double.doubleToLongBits(value);
+        setTypedValue(ValueType.DOUBLE, bits, null, null);
+        valueChanged(ValueType.DOUBLE, bits, null);
+        touch();
+        publishSnapshots();
+    }
+
+    public void setBooleanValue(boolean value) {
+        setTypedValue(ValueType.BOOLEAN, value ? 1 : 0, null, null);
+        valueChanged(ValueType.BOOLEAN, value ? 1 : 0, null);
+        touch();
+        publishSnapshots();
+    }
+
+    // the array is kept as is, not copied
+    public void setBytesValue(byte[] value) {
+        if (value == null) {
+            setValue(null);
+            return;
+        }
+        setTypedValue(ValueType.BYTES, 0, value, null);
+        valueChanged(ValueType.BYTES, 0, null);
+        touch();
+        publishSnapshots();
+    }
+
+    // typed getters convert from whatever type is stored; a STRING value is
+    // parsed, and a null one reads as 0, 0.0 or false like an unset field
+    public long getLongValue() {
+        ValueCopy copy = readValue();
+        return copy.type.toLong(copy.bits, copy.text());
+    }
+
+    public double getDoubleValue() {
+        ValueCopy copy = readValue();
+        return copy.type.toDouble(copy.bits, copy.text());
+    }
+
+    public boolean getBooleanValue() {
+        ValueCopy copy = readValue();
+        return copy.type.toBoolean(copy.bits, copy.text());
+    }
+
+    // NaN unless the value is a number, or text that reads as one
+    double getNumericValue() {
+        ValueCopy copy = readValue();
+        return copy.type.toNumber(copy.bits, copy.text);
+    }
+
+    // a STRING value has to be Base64, the text form BYTES take; anything
+    // else throws IllegalArgumentException, as bad numbers do above
+    public byte[] getBytesValue() {
+        ValueCopy copy = readValue();
+        if (copy.type == ValueType.BYTES) {
+            return copy.bytes;
+        }
+        return copy.type.toBytes(copy.text());
+    }
+
+// *********************************************** //
+// Value locking
+// *********************************************** //
+    // How a node is kept consistent under concurrent use:
+    //  - value fields: written under the write lock of this node's stripe and
+    //    read optimistically, so readers never block writers and always see
+    //    all four fields from the same write
+    //  - attributes: immutable pair arrays swapped in with a CAS (see Attributes)
+    //  - children and childIndex: the children list's monitor, only held to
+    //    read or change this node's own list and index; the one nesting allowed
+    //    is parent before child, and events never fire while it's held
+    //  - parent, name, snapshot and changeSupport are volatile
+    // So updates to different subtrees only meet in their common ancestors'
+    // event cascade, which takes no locks unless snapshots are enabled.
+    // StampedLock isn't reentrant and unrelated nodes share stripes, so a
+    // stripe is never held while taking another lock or calling out of this
+    // section.
+    private StampedLock valueLock() {
+        return VALUE_LOCKS[this.lockStripe];
+    }
+
+    private void setTypedValue(ValueType type, long bits, byte[] bytes, String text) {
+        StampedLock lock = valueLock();
+        long stamp = lock.writeLock();
+        try {
+            this.valueType = type;
+            this.valueBits = bits;
+            this.valueBytes = bytes;
+            this.value = text;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // the four value fields as of one point in time
+    private static final class ValueCopy {
+        private ValueType type;
+        private long bits;
+        private byte[] bytes;
+        private String text;
+
+        // the text form, formatting a typed value if it isn't cached yet
+        private String text() {
+            return text == null && type != ValueType.STRING ? type.format(bits, bytes) : text;
+        }
+    }
+
+    private ValueCopy readValue() {
+        ValueCopy ret = new ValueCopy();
+        StampedLock lock = valueLock();
+        long stamp = lock.tryOptimisticRead();
+        ret.type = this.valueType;
+        ret.bits = this.valueBits;
+        ret.bytes = this.valueBytes;
+        ret.text = this.value;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                ret.type = this.valueType;
+                ret.bits = this.valueBits;
+                ret.bytes = this.valueBytes;
+                ret.text = this.value;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return ret;
+    }
+
+    private void copyValue(DeviceNode other) {
+        ValueCopy copy = other.readValue();
+        setTypedValue(copy.type, copy.bits, copy.bytes, copy.text);
+    }
+
+    // take on the updated node's value, if it has one; returns true if this
+    // node's value changed, false if there was none or it was equal (an equal
+    // value of another type still takes on the new type)
+    private boolean mergeValue(DeviceNode updated) {
+        StampedLock otherLock = updated.valueLock();
+        long stamp = otherLock.tryOptimisticRead();
+        ValueType type = updated.valueType;
+        long bits = updated.valueBits;
+        byte[] bytes = updated.valueBytes;
+        String text = updated.value;
+        if (!otherLock.validate(stamp)) {
+            stamp = otherLock.readLock();
+            try {
+                type = updated.valueType;
+                bits = updated.valueBits;
+                bytes = updated.valueBytes;
+                text = updated.value;
+            } finally {
+                otherLock.unlockRead(stamp);
+            }
+        }
+
+        // no value to take on
+        if (type == ValueType.STRING && text == null) {
+            return false;
+        }
+
+        StampedLock lock = valueLock();
+        boolean equal;
+        stamp = lock.writeLock();
+        try {
+            equal = valueEquals(type, bits, bytes, text);
+            if (!equal || this.valueType != type) {
+                this.valueType = type;
+                this.valueBits = bits;
+                this.valueBytes = bytes;
+                this.value = text;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        if (!equal) {
+            valueChanged(type, bits, text);
+        }
+        return !equal;
+    }
+
+    // tell the journal and index; outside the lock, they take their own
+    private void valueChanged(ValueType type, long bits, String text) {
+        ChangeJournal j = this.journal;
+        if (j != null) {
+            j.record(this, type, bits, text);
+        }
+        AttributeIndex ix = this.index;
+        if (ix != null) {
+            ix.valueChanged(this);
+        }
+    }
+
+    // must hold the write lock; compare the stored forms, only different
+    // types fall back to the text form
+    private boolean valueEquals(ValueType type, long bits, byte[] bytes, String text) {
+        if (this.valueType == type) {
+            switch (type) {
+                case STRING:
+                    return this.value != null && this.value.equals(text);
+                case BYTES:
+                    return Arrays.equals(this.valueBytes, bytes);
+                default:
+                    return this.valueBits == bits;
+            }
+        }
+
+        String thisText = this.value == null && this.valueType != ValueType.STRING
+                ? this.valueType.format(this.valueBits, this.valueBytes)
+                : this.value;
+        if (text == null && type != ValueType.STRING) {
+            text = type.format(bits, bytes);
+        }
+        return thisText != null && thisText.equals(text);
     }
 
     // should only be used internally; add/remove child methods should be used
     protected void setParent(DeviceNode parent) {
         this.parent = parent;
-        this.changeSupport.addPropertyChangeListener(parent);
     }
 
     public DeviceNode getParent() {
@@ -105,20 +460,92 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
     }
 
     public DeviceNode addAttribute(String name, String attribute) {
-        this.attributes.put(name, attribute);
+        if (putAttribute(name, attribute)) {
+            touch();
+        }
+        publishSnapshots();
         return this;
     }
 
+    // add the attribute without publishing a snapshot; update() publishes once at the end.
+    // returns true if the attribute's value changed
+    private boolean putAttribute(String name, String attribute) {
+        Object state;
+        Object next;
+        String old;
+        // pair arrays are swapped in whole; a map is changed in place
+        do {
+            state = this.attributes;
+            old = Attributes.get(state, name);
+            next = Attributes.put(state, name, attribute);
+        } while (next != state && !ATTRIBUTES.compareAndSet(this, state, next));
+
+        boolean changed = !attribute.equals(old);
+        if (changed) {
+            if ("_id".equals(name)) {
+                idChanged(old);
+            }
+            AttributeIndex ix = this.index;
+            if (ix != null) {
+                ix.attributeChanged(this, name);
+            }
+        }
+        return changed;
+    }
+
     public Map<String, String> getAttributes() {
-        return Collections.unmodifiableMap(attributes);
+        // read-only live view
+        return new Attributes.View() {
+            @Override
+            Object state() {
+                return attributes;
+            }
+        };
     }
 
     public String getAttribute(String name) {
-        return attributes.get(name);
+        return Attributes.get(this.attributes, name);
+    }
+
+    // immutable key/value pairs, for copying attributes without a map
+    Object[] getAttributePairs() {
+        return Attributes.pairs(this.attributes);
     }
 
     public void removeAttribute(String name) {
-        this.attributes.remove(name);
+        Object state;
+        Object next;
+        String old;
+        do {
+            state = this.attributes;
+            old = Attributes.get(state, name);
+            next = Attributes.remove(state, name);
+        } while (next != state && !ATTRIBUTES.compareAndSet(this, state, next));
+
+        if (old != null) {
+            if ("_id".equals(name)) {
+                idChanged(old);
+            }
+            AttributeIndex ix = this.index;
+            if (ix != null) {
+                ix.attributeChanged(this, name);
+            }
+            touch();
+        }
+        publishSnapshots();
+    }
+
+    // keep the parent's index in step with this node's _id
+    private void idChanged(String oldId) {
+        DeviceNode p = this.parent;
+        if (p != null) {
+            synchronized (p.children) {
+                if (p.childIndex != null) {
+                    p.childIndex.idChanged(this, oldId);
+                }
+            }
+        }
+        this.structureChanged();
     }
 
     public NodeHandler getSetHandle() {
@@ -146,29 +573,104 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
     }
 
     public DeviceModelProto.DeviceNode.Builder getDeviceNodeProtoBuf() {
-        DeviceModelProto.DeviceNode.Builder devNodeBuilder = DeviceModelProto.DeviceNode.newBuilder();
+        return PROTO_BUF.apply(this);
+    }
+
+    // same as getDeviceNodeProtoBuf(), split over the ForkJoin common pool for big trees
+    public DeviceModelProto.DeviceNode.Builder getDeviceNodeProtoBufParallel() {
+        return PROTO_BUF.applyParallel(this);
+    }
 
-        devNodeBuilder.setName(this.getName());
-        devNodeBuilder.setValue(this.getValue());
-        for (String key : this.attributes.keySet()) {
-            devNodeBuilder.getAttributesMap().put(key, this.attributes.get(key));
+    private static final TreeTransform<DeviceModelProto.DeviceNode.Builder> PROTO_BUF = new TreeTransform<DeviceModelProto.DeviceNode.Builder>() {
+        @Override
+        protected List<DeviceNode> children(DeviceNode node) {
+            // a published snapshot covers the whole subtree; and lazy
+            // subtrees aren't loaded just to be written out
+            return node.snapshot != null ? Collections.<DeviceNode>emptyList() : new ArrayList<>(node.children);
         }
-        for (DeviceNode child : this.children) {
-            devNodeBuilder.getChildrenList().add(child.getDeviceNodeProtoBuf().build());
+
+        @Override
+        protected DeviceModelProto.DeviceNode.Builder combine(DeviceNode node, List<DeviceNode> children, List<DeviceModelProto.DeviceNode.Builder> results) {
+            // read from the published snapshot if there is one
+            DeviceSnapshot published = node.snapshot;
+            if (published != null) {
+                return published.getDeviceNodeProtoBuf();
+            }
+
+            DeviceModelProto.DeviceNode.Builder devNodeBuilder = DeviceModelProto.DeviceNode.newBuilder();
+            devNodeBuilder.setName(node.getName());
+            ValueCopy copy = node.readValue();
+            setProtoValue(devNodeBuilder, copy.type, copy.bits, copy.bytes, copy.text);
+            devNodeBuilder.putAllAttributes(node.getAttributes());
+            for (DeviceModelProto.DeviceNode.Builder child : results) {
+                devNodeBuilder.addChildren(child);
+            }
+
+            return devNodeBuilder;
         }
+    };
+
+    // typed values go in their typed field, leaving the text value empty
+    static void setProtoValue(DeviceModelProto.DeviceNode.Builder devNodeBuilder, ValueType type, long bits, byte[] bytes, String text) {
+        switch (type) {
+            case LONG:
+                devNodeBuilder.setLongValue(bits);
+                break;
+            case DOUBLE:
+                devNodeBuilder.setDoubleValue(Double.longBitsToDouble(bits));
+                break;
+            case BOOLEAN:
+                devNodeBuilder.setBoolValue(bits != 0);
+                break;
+            case BYTES:
+                devNodeBuilder.setBytesValue(ByteString.copyFrom(bytes));
+                break;
+            default:
+                if (text != null) {
+                    devNodeBuilder.setValue(text);
+                }
+        }
+    }
 
-        return devNodeBuilder;
+    // read back whichever value form the message carries
+    static void getProtoValue(DeviceModelProto.DeviceNode node, DeviceNode target) {
+        switch (node.getTypedValueCase()) {
+            case LONG_VALUE:
+                target.setLongValue(node.getLongValue());
+                break;
+            case DOUBLE_VALUE:
+                target.setDoubleValue(node.getDoubleValue());
+                break;
+            case BOOL_VALUE:
+                target.setBooleanValue(node.getBoolValue());
+                break;
+            case BYTES_VALUE:
+                target.setBytesValue(node.getBytesValue().toByteArray());
+                break;
+            default:
+                if (node.getValue() != null && node.getValue().trim().length() > 0) {
+                    target.setValue(node.getValue());
+                }
+        }
     }
 
 // *********************************************** //
 // Child methods
 // *********************************************** //
+    // true for a lazy node that isn't loaded yet, which isn't loaded to check
+    public boolean hasChildren() {
+        return !this.children.isEmpty() || !isLoaded();
+    }
+
     public boolean hasChild(DeviceNode node) {
         return indexOfChild(node) != -1;
     }
 
     public boolean hasChild(String name) {
-        return indexOfChild(name) != -1;
+        ensureLoaded();
+        synchronized (this.children) {
+            return this.childIndex != null && this.childIndex.first(name) != null;
+        }
     }
 
     public int indexOfChild(DeviceNode node) {
@@ -176,17 +678,11 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
     }
 
     public int indexOfChild(String name) {
+        ensureLoaded();
         synchronized (this.children) {
-            DeviceNode child;
-            for (int idx = 0; idx < this.children.size(); idx++) {
-                child = this.children.get(idx);
-                if (child.getName().equals(name)) {
-                    return idx;
-                }
-            }
+            DeviceNode child = this.childIndex != null ? this.childIndex.first(name) : null;
+            return child != null ? this.children.indexOf(child) : -1;
         }
-
-        return -1;
     }
 
     public DeviceNode addChild(DeviceNode child) {
@@ -202,16 +698,54 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
             this.update(wrapper);
         }
         else {
-            // Update the child to hold this node as it's parent.
-            child.setParent(this);
+            attachChild(child);
+            this.structureChanged();
+            child.touchSubtree();
+            this.publishSnapshots();
+        }
 
-            // Add the child to the list of children.
-            synchronized (children) {
-                this.children.add(child);
+        return child;
+    }
+
+    // also used to assemble detached copies (query results, deltas), where
+    // there are no versions, events or structure to keep up
+    void attachChild(DeviceNode child) {
+        // a node still listed by another parent keeps its order there
+        DeviceNode previous = child.parent;
+        if (previous != null && previous != this) {
+            synchronized (previous.children) {
+                if (previous.childIndex != null) {
+                    previous.childIndex.release(child);
+                }
             }
         }
 
-        return child;
+        // Update the child to hold this node as it's parent.
+        child.setParent(this);
+
+        // Children of a snapshot subtree publish snapshots too.
+        if (this.snapshot != null) {
+            child.enableSnapshotsRecursive();
+        }
+
+        // and children of a journaled or indexed subtree are journaled or indexed
+        ChangeJournal j = this.journal;
+        if (j != null) {
+            child.setJournal(j);
+        }
+        AttributeIndex ix = this.index;
+        if (ix != null) {
+            child.setIndex(ix);
+        }
+
+        // Add the child to the list of children.
+        synchronized (children) {
+            this.children.add(child);
+            if (this.childIndex == null) {
+                this.childIndex = new ChildIndex(this);
+            }
+            this.childIndex.add(child);
+        }
     }
 
     public DeviceNode addChildren(DeviceNode[] childs) {
@@ -224,37 +758,51 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
 
     // read-only; adding should go through addChild()
     public List<DeviceNode> getChildren() {
+        ensureLoaded();
         return Collections.unmodifiableList(this.children);
     }
 
     public List<DeviceNode> getChildren(String name) {
+        ensureLoaded();
         synchronized (this.children) {
-            List<DeviceNode> ret = new ArrayList<>();
-            for (DeviceNode node : this.children) {
-                if (node.getName().equals(name)) {
-                    ret.add(node);
-                }
-            }
-
-            return ret;
+            List<DeviceNode> nodes = this.childIndex != null ? this.childIndex.get(name) : null;
+            return nodes != null ? new ArrayList<>(nodes) : new ArrayList<>();
         }
     }
 
     public ConcurrentHashMap<String, DeviceNode> getAllChildren() {
         ConcurrentHashMap<String, DeviceNode> allChildren = new ConcurrentHashMap<>();
-        collectAllChildren(allChildren, this);
+        NodeCursor cursor = NodeCursor.depthFirst(this, true);
+        while (cursor.next()) {
+            allChildren.put(cursor.path().toString(), cursor.node().cloneShallow());
+        }
         return allChildren;
     }
 
-    private void collectAllChildren(ConcurrentHashMap<String, DeviceNode> allChildren, DeviceNode node) {
-        allChildren.put(node.getNodePath(), node.cloneShallow());
+    // same as getAllChildren(), split over the ForkJoin common pool for big trees
+    public ConcurrentHashMap<String, DeviceNode> getAllChildrenParallel() {
+        ConcurrentHashMap<String, DeviceNode> allChildren = new ConcurrentHashMap<>();
+        new TreeTransform<Void>() {
+            @Override
+            protected Void combine(DeviceNode node, List<DeviceNode> children, List<Void> results) {
+                allChildren.put(node.getNodePath(), node.cloneShallow());
+                return null;
+            }
+        }.applyParallel(this);
+        return allChildren;
+    }
 
-        for (DeviceNode child : node.getChildren()) {
-            collectAllChildren(allChildren, child);
-        }
+    // walk the subtree depth-first, this node included; see NodeCursor
+    public void visit(NodeVisitor visitor) {
+        NodeCursor.depthFirst(this, false).visit(visitor);
+    }
+
+    public void visit(NodeVisitor visitor, NodeCursor.Order order, boolean trackPaths) {
+        new NodeCursor(this, order, trackPaths).visit(visitor);
     }
 
     public DeviceNode getChild(int idx) {
+        ensureLoaded();
         if (this.children.size() > idx) {
             return this.children.get(idx);
         }
@@ -263,58 +811,55 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
     }
 
     public DeviceNode getChild(String name) {
-        List<DeviceNode> childs = this.getChildren(name);
-        return childs != null && childs.size() > 0 ? childs.get(0) : null;
+        ensureLoaded();
+        synchronized (this.children) {
+            return this.childIndex != null ? this.childIndex.first(name) : null;
+        }
     }
 
     public DeviceNode getChild(String name, String id) {
-        // Get a list of this node's children.
-        List<DeviceNode> childs = this.getChildren(name);
+        ensureLoaded();
+        synchronized (this.children) {
+            if (this.childIndex == null) {
+                return null;
+            }
 
-        // If an id was passed in, look for that child.
-        if (id != null && id.trim().length() > 0) {
-            for (DeviceNode child : childs) {
-                // Check the id against this child.
-                if (child.getAttribute("_id") != null && child.getAttribute("_id").trim().equals(id)) {
+            // If an id was passed in, look for that child.
+            if (id != null && id.trim().length() > 0) {
+                DeviceNode child = this.childIndex.get(name, id);
+                if (child != null) {
                     // Found it.
                     return child;
                 }
             }
-        }
 
-        // Default to just returning the first one.
-        return childs != null && childs.size() > 0 ? childs.get(0) : null;
+            // Default to just returning the first one.
+            return this.childIndex.first(name);
+        }
     }
 
     public DeviceNode getChild(DeviceNode node) {
-        List<DeviceNode> nodes = this.getChildren(node.getName());
-        for (DeviceNode child : nodes) {
-            if (child.compareTo(node) == 0) {
-                return child;
-            }
+        ensureLoaded();
+        synchronized (this.children) {
+            return this.childIndex != null ? this.childIndex.match(node) : null;
         }
-
-        return null;
     }
 
     public DeviceNode getChildById(int id) {
+        ensureLoaded();
         synchronized (this.children) {
-            for (DeviceNode child : this.children) {
-                if (child.getAttribute("_id") != null && child.getAttribute("_id").equals(String.valueOf(id))) {
-                    return child;
-                }
-            }
-
-            return null;
+            return this.childIndex != null ? this.childIndex.getById(String.valueOf(id)) : null;
         }
     }
 
     public List<DeviceNode> getChildrenSorted() {
         List<DeviceNode> leaves = new ArrayList<>();
         List<DeviceNode> branches = new ArrayList<>();
+        ensureLoaded();
         synchronized (this.children) {
             for (DeviceNode node : this.children) {
-                if (node.getChildren().isEmpty()) {
+                // an unloaded lazy node counts as a branch rather than being loaded to check
+                if (node.children.isEmpty() && node.isLoaded()) {
                     leaves.add(node);
                 } else {
                     branches.add(node);
@@ -330,9 +875,10 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
     public List<String> getChildrenNamesSorted() {
         List<String> leaves = new ArrayList<>();
         List<String> branches = new ArrayList<>();
+        ensureLoaded();
         synchronized (this.children) {
             for (DeviceNode node : this.children) {
-                if (node.getChildren().isEmpty()) {
+                if (node.children.isEmpty() && node.isLoaded()) {
                     leaves.add(node.getName());
                 } else {
                     branches.add(node.getName());
@@ -348,23 +894,30 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
     // update to be called from external classes; this calls the recursive loop
     // to update all the children (if applicable) and fire the aggregated events
     public void update(DeviceNode updatedNode) {
+        // change records are only built up to the highest listening node
+        DeviceNode observer = topObserver();
+
         // do recursive update & fire events as needed
-        DeviceNode change = updateNode(updatedNode);
+        DeviceNode change = updateNode(updatedNode, observer != null && observer != this);
 
         // At this point we've updated everything and the end of update() fired
         // a change event for this node (if any); if there was a change, continue
         // up the tree for all the parents
         if (change != null) {
             if (parent != null) {
-                parent.childEventFired(change);
+                parent.childEventFired(change, observer == this ? null : observer);
             }
         }
     }
 
     // do not use this one
-    private DeviceNode updateNode(DeviceNode updatedNode) {
+    // observed is true if an ancestor has listeners and so needs the change record;
+    // otherwise only changes are tracked and UNRECORDED is returned in place of a record
+    private DeviceNode updateNode(DeviceNode updatedNode, boolean observed) {
         // keep track if anything changed and should fire event
         DeviceNode changeEvent = null;
+        boolean changed = false;
+        boolean record = observed || hasListeners();
 
         // make sure it's this node
         if (this.compareTo(updatedNode) == 0) {
@@ -377,47 +930,69 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
 
             if (handleHere) {
                 // update attributes
-                boolean attributeChange = this.attributes.size() < updatedNode.getAttributes().size();
-                this.attributes.putAll(updatedNode.getAttributes());
+                Object[] attributePairs = Attributes.pairs(updatedNode.attributes);
+                boolean attributeChange = Attributes.size(this.attributes) < attributePairs.length / 2;
+                boolean attributeValueChange = false;
+                for (int idx = 0; idx < attributePairs.length; idx += 2) {
+                    attributeValueChange |= this.putAttribute((String) attributePairs[idx], (String) attributePairs[idx + 1]);
+                }
 
                 // Check to see if there was an attribute change.
                 if (attributeChange) {
-                    if (changeEvent == null) {
-                        changeEvent = this.cloneShallow();
-                    }
+                    changed = true;
                 }
 
                 // set value, if needed
-                if (updatedNode.getValue() != null) {
-                    if (this.getValue() == null || (this.getValue() != null && !this.getValue().equals(updatedNode.getValue()))) {
-                        this.setValue(updatedNode.getValue());
+                boolean valueChange = this.mergeValue(updatedNode);
+                if (valueChange) {
+                    changed = true;
+                }
 
-                        if (changeEvent == null) {
-                            changeEvent = this.cloneShallow();
-                        }
-                    }
+                // versions count any changed attribute value, not just new ones
+                if (valueChange || attributeValueChange) {
+                    touch();
+                }
+
+                // only build the record once the value and attributes are in
+                if (changed && record) {
+                    changeEvent = this.cloneShallow();
                 }
             }
 
-            // merge children; update or add
-            for (DeviceNode child : updatedNode.getChildren()) {
+            // merge children; update or add, into the loaded children of a lazy node
+            if (updatedNode.children.size() > 0) {
+                ensureLoaded();
+            }
+            for (int idx = 0; idx < updatedNode.children.size(); idx++) {
+                DeviceNode child = updatedNode.children.get(idx);
                 boolean added = false;
 
-                // if child does not exist yet, add it
-                if (this.getChild(child) == null) {
-                    try {
-                        this.addChild(child.cloneShallow());
-                    } catch (Exception ex) {
-                        // we just made this child; it'll always have a null parent
+                // if child does not exist yet, add it; in one go, so concurrent
+                // updates can't both add the same child
+                DeviceNode existing;
+                synchronized (this.children) {
+                    existing = this.childIndex != null ? this.childIndex.match(child) : null;
+                    if (existing == null) {
+                        existing = child.cloneShallow();
+                        this.attachChild(existing);
+                        added = true;
                     }
-                    added = true;
+                }
+                if (added) {
+                    this.structureChanged();
+                    existing.touchSubtree();
                 }
 
                 // update child
-                DeviceNode childUpdate = this.getChild(child).updateNode(child);
+                DeviceNode childUpdate = existing.updateNode(child, record);
 
                 // either updated child or added (if added, won't get childUpdate)
                 if (childUpdate != null || added) {
+                    changed = true;
+                    if (!record) {
+                        continue;
+                    }
+
                     if (changeEvent == null) {
                         changeEvent = this.cloneShallow();
                     }
@@ -441,8 +1016,17 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
             }
         }
 
+        if (!changed) {
+            return null;
+        }
+
+        publishSnapshot();
+
         // fire event for this node if it or any children changed
-        if (changeEvent != null) {
+        if (changeEvent == null) {
+            return UNRECORDED;
+        }
+        if (hasListeners()) {
 //            System.out.println(this.getString());
             changeSupport.firePropertyChange(PROPERTY_CHANGE_NAME, null, changeEvent);
         }
@@ -459,31 +1043,77 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
             return;
         }
 
+        // take them all out in one pass
+        List<DeviceNode> nodes;
         synchronized (this.children) {
-            DeviceNode node;
-            List<Integer> idxes = new ArrayList<>();
-            for (int idx = 0; idx < this.children.size(); idx++) {
-                node = this.children.get(idx);
-                if (node.getName().equals(name)) {
-                    idxes.add(idx);
-                }
+            nodes = this.childIndex != null ? this.childIndex.get(name) : null;
+            if (nodes == null) {
+                return;
             }
 
-            Collections.sort(idxes);
-            Collections.reverse(idxes);
-            for (Integer idx : idxes) {
-                removeChild(idx);
+            nodes = new ArrayList<>(nodes);
+            this.children.removeAll(nodes);
+            this.childIndex.removeAll(name);
+        }
+        this.structureChanged();
+        this.touch();
+        if (this.index != null) {
+            for (DeviceNode node : nodes) {
+                node.setIndex(null);
             }
         }
+
+        // then fire from the back, same as removing by descending index
+        for (int idx = nodes.size() - 1; idx >= 0; idx--) {
+            fireRemoved(nodes.get(idx));
+        }
+        this.publishSnapshots();
     }
 
     public void removeChild(int idx) {
+        removeChildNode(this.children.get(idx));
+    }
+
+    // drop the child from the list and index, then fire its remove event;
+    // events are never fired while holding the children lock
+    private void removeChildNode(DeviceNode child) {
         synchronized (this.children) {
-            DeviceNode n = this.children.get(idx).cloneShallow();
-            n.addAttribute("_action", "remove");
-            this.children.get(idx).update(n);
-            this.children.remove(idx);
+            if (!this.children.remove(child)) {
+                return;
+            }
+            this.childIndex.remove(child);
         }
+        this.structureChanged();
+        this.touch();
+        if (this.index != null) {
+            child.setIndex(null);
+        }
+        fireRemoved(child);
+        this.publishSnapshots();
+    }
+
+    // the removed child still points at this node, so the event climbs the tree as usual
+    private void fireRemoved(DeviceNode child) {
+        DeviceNode n = child.cloneShallow();
+        n.addAttribute("_action", "remove");
+        child.update(n);
+    }
+
+    private void structureChanged() {
+        DeviceNode root = this;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        STRUCTURE_VERSION.incrementAndGet(root);
+    }
+
+    // version of the structure of the tree this node belongs to
+    int getStructureVersion() {
+        DeviceNode root = this;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        return root.structureVersion;
     }
 
     public void removeChild(String name) {
@@ -491,37 +1121,30 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
     }
 
     public void removeChild(String name, String id) {
-        synchronized (this.children) {
-            // Default to removing all children with this name if
-            // id is not valid.
-            if (id == null || id.trim().length() == 0) {
-                this.removeChildren(name);
-            } // If an id was passed in, look for that child.
-            else {
-                // Get a list of this node's children.
-                List<DeviceNode> childs = this.getChildren(name);
-
-                for (DeviceNode child : childs) {
-                    // Check the id against this child.
-                    if (child.getAttribute("_id") != null && child.getAttribute("_id").trim().equals(id)) {
-                        // Found it.
-                        DeviceNode n = child.cloneShallow();
-                        n.addAttribute("_action", "remove");
-                        child.update(n);
-                        this.children.remove(child);
-                        return;
-                    }
-                }
-            }
-
-            // No child found.
+        // Default to removing all children with this name if
+        // id is not valid.
+        if (id == null || id.trim().length() == 0) {
+            this.removeChildren(name);
             return;
         }
+
+        // If an id was passed in, look for that child.
+        DeviceNode child;
+        synchronized (this.children) {
+            child = this.childIndex != null ? this.childIndex.get(name, id) : null;
+        }
+        if (child != null) {
+            // Found it.
+            removeChildNode(child);
+        }
     }
 
     public DeviceNode getChildByPath(String path) {
-        List<DeviceNode> childs = this.searchTree(path);
-        return childs != null && childs.size() > 0 ? childs.get(0) : null;
+        return NodePath.compile(path).resolve(this);
+    }
+
+    public DeviceNode getChildByPath(NodePath path) {
+        return path.resolve(this);
     }
 
     public List<DeviceNode> getChildrenByPath(String path) {
@@ -529,103 +1152,544 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
     }
 
     public List<DeviceNode> searchTree(String path) {
-        // Always return a list.
-        List<DeviceNode> ret = new ArrayList<>();
+        return NodePath.compile(path).resolveAll(this);
+    }
+
+// *********************************************** //
+// Version methods
+// *********************************************** //
+    // A node's version moves on whenever its value, an attribute or its name
+    // changes, or a child is removed from it; an added child and everything
+    // under it take the version of the add. Each ancestor's subtreeVersion
+    // is raised to match, so a whole untouched subtree can be skipped by
+    // looking at one number. A change always gets a higher version than
+    // anything on its path and than currentVersion() returned before it, but
+    // changes to unrelated nodes on different threads aren't ordered.
+
+    // a version every change up to which has fully propagated, so it's
+    // visible through subtreeVersion, while any change made after this
+    // returns gets a higher one; doesn't wait for changes in progress
+    public static long currentVersion() {
+        return VersionClock.currentVersion();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getSubtreeVersion() {
+        return subtreeVersion;
+    }
+
+    // Copies of every node changed since the given version, together with the
+    // path down to them, as a tree that can be passed to update(); null if
+    // nothing under this node changed. Only subtrees with something newer are
+    // visited. To sync incrementally, take currentVersion() before each call
+    // and pass it to the next one: a change is then reported at least once,
+    // though one racing the call may show up in both. Removed children aren't
+    // listed, their parent just shows up as changed.
+    public DeviceNode getChangesSince(long since) {
+        if (this.subtreeVersion <= since) {
+            return null;
+        }
 
-        // No path, empty list.
-        if (path == null || (path = path.trim()).length() == 0) {
-            return ret;
+        DeviceNode ret = this.cloneShallow();
+        for (DeviceNode child : this.children) {
+            DeviceNode change = child.getChangesSince(since);
+            if (change != null) {
+                // a detached copy; no versions, events or snapshots to keep up
+                ret.attachChild(change);
+            }
         }
+        return ret;
+    }
 
-        // Strip off any beginning "/" character.
-        if (path.startsWith("/")) {
-            path = path.substring(1);
+    // this node changed; called after the change is in place
+    private void touch() {
+        long v = VersionClock.begin(this);
+        try {
+            this.version = v;
+            propagateVersion(v);
+        } finally {
+            VersionClock.end();
         }
+    }
 
-        // If the path is empty, return this node.
-        if (path.isEmpty()) {
-            ret.add(this);
-        } else {
-            // Check to see if the root matches this node.
-            if (!path.split("/")[0].equals(this.getName())) {
-                path = this.getName() + "/" + path;
+    // this node was just added, so its whole subtree is new
+    private void touchSubtree() {
+        long v = VersionClock.begin(this);
+        try {
+            stampSubtree(v);
+            DeviceNode p = this.parent;
+            if (p != null) {
+                p.propagateVersion(v);
             }
+        } finally {
+            VersionClock.end();
+        }
+    }
+
+    private void stampSubtree(long v) {
+        NodeCursor cursor = NodeCursor.resident(this);
+        while (cursor.next()) {
+            DeviceNode node = cursor.node();
+            node.version = v;
+            node.raiseSubtreeVersion(v);
+        }
+    }
+
+    // raise subtreeVersion from here to the root; keeps going past a node a
+    // newer change already raised, since that change may still be on its
+    // way up and currentVersion() counts this one as done once it returns
+    private void propagateVersion(long v) {
+        for (DeviceNode node = this; node != null; node = node.parent) {
+            node.raiseSubtreeVersion(v);
+        }
+    }
+
+    private void raiseSubtreeVersion(long v) {
+        long current;
+        do {
+            current = this.subtreeVersion;
+            if (current >= v) {
+                return;
+            }
+        } while (!SUBTREE_VERSION.compareAndSet(this, current, v));
+    }
+
+// *********************************************** //
+// Hash methods
+// *********************************************** //
+    // A 64-bit hash of the subtree's content: name, value, attributes and
+    // children. Values hash by their text form, so equal values of different
+    // types hash alike, and sibling order doesn't count since children are
+    // matched by name and _id. Each hash is cached with the subtreeVersion it
+    // was computed at; every change moves that version on along its path to
+    // the root, so after an update only the hashes on that path are computed
+    // again and every other subtree answers from its cache.
+
+    private static final class HashCache {
+        private final long version;
+        private final long hash;
+
+        private HashCache(long version, long hash) {
+            this.version = version;
+            this.hash = hash;
+        }
+    }
 
-            // Recursively search the tree.
-            this.searchTree(ret, path.split("/"), 0);
+    public long getSubtreeHash() {
+        // the version is read first, so a change racing this only ever leaves
+        // a cache entry that is already out of date
+        long v = this.subtreeVersion;
+        HashCache cached = this.hashCache;
+        if (cached != null && cached.version == v) {
+            return cached.hash;
         }
 
-        // Return the list.
+        long sum = 0;
+        for (DeviceNode child : this.children) {
+            sum += mix(child.getSubtreeHash());
+        }
+        long ret = mix(contentHash() + 0x9e3779b97f4a7c15L * sum);
+        this.hashCache = new HashCache(v, ret);
         return ret;
     }
 
-    private void searchTree(List<DeviceNode> ret, String[] path, int idx) {
-        // Check this device node against the current index of the path.
-        if (this.getName().equals(path[idx])) {
-            // Check to see if there are more path elements.
-            if (path.length - 1 > idx) {
-                // Check to see if we want a specific id.
-                if (path[idx + 1].startsWith("_")) {
-                    // Make sure we even have an id to check against.
-                    if (this.getAttribute("_id") == null || this.getAttribute("_id").trim().length() == 0) {
-                        // No ID so return.
-                        return;
-                    }
+    // The changes that would bring this tree up to date with other, as copies
+    // of other's nodes (with the path down to them) that can be passed
+    // straight to this.update(); null if both hash alike. Only subtrees whose
+    // hashes differ are compared, and a child this tree doesn't have yet is
+    // copied whole. update() never removes anything, so nodes that only this
+    // tree has aren't reported.
+    public DeviceNode diff(DeviceNode other) {
+        if (other == null || this.getSubtreeHash() == other.getSubtreeHash()) {
+            return null;
+        }
 
-                    // Check to see if the id is valid.
-                    String id = path[idx + 1].substring(1);
-                    if (id.trim().length() > 0 && this.getAttribute("_id") != null) {
-                        // Check to see if we have the id.
-                        if (!this.getAttribute("_id").trim().equals(id)) {
-                            // The id did not match.
-                            return;
-                        }
-                    } else {
-                        return;
-                    }
+        DeviceNode ret = other.cloneShallow();
+        for (DeviceNode child : other.children) {
+            DeviceNode existing = this.getChild(child);
+            DeviceNode change = existing != null ? existing.diff(child) : child.copyTree();
+            if (change != null) {
+                ret.attachChild(change);
+            }
+        }
+        return ret;
+    }
 
-                    idx++;
-                }
+    // detached deep copy
+    private DeviceNode copyTree() {
+        DeviceNode ret = this.cloneShallow();
+        for (DeviceNode child : this.children) {
+            ret.attachChild(child.copyTree());
+        }
+        return ret;
+    }
 
-                if (path.length - 1 > idx) {
-                    synchronized (this.children) {
-                        // Loop over this node's children and search them for the next path element.
-                        for (DeviceNode node : this.children) {
-                            node.searchTree(ret, path, idx + 1);
-                        }
-                    }
-                } else {
-                    // We found the node, add it.
-                    ret.add(this);
-                }
-            } else {
-                // We found the node, add it.
-                ret.add(this);
+    // this node alone: name, value and attributes, the latter in any order
+    private long contentHash() {
+        long ret = mix(hash(this.name));
+        ret = mix(ret ^ hash(readValue().text()));
+
+        long attributeSum = 0;
+        Object[] attributePairs = Attributes.pairs(this.attributes);
+        for (int idx = 0; idx < attributePairs.length; idx += 2) {
+            attributeSum += mix(hash((String) attributePairs[idx]) * 31 + hash((String) attributePairs[idx + 1]));
+        }
+        return mix(ret ^ attributeSum);
+    }
+
+    // 64-bit FNV-1a; String.hashCode() is too narrow for telling trees apart
+    private static long hash(String str) {
+        if (str == null) {
+            return 0x5bd1e9955bd1e995L;
+        }
+
+        long ret = 0xcbf29ce484222325L;
+        for (int idx = 0; idx < str.length(); idx++) {
+            ret ^= str.charAt(idx);
+            ret *= 0x100000001b3L;
+        }
+        return ret;
+    }
+
+    // splitmix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+// *********************************************** //
+// Snapshot methods
+// *********************************************** //
+    // turn on snapshot mode for this subtree; from now on every change to it
+    // publishes a new immutable version of the changed path, sharing the rest
+    public void enableSnapshots() {
+        enableSnapshotsRecursive();
+
+        // let an enclosing snapshot subtree pick up the new version
+        if (this.parent != null) {
+            this.parent.publishSnapshots();
+        }
+    }
+
+    private void enableSnapshotsRecursive() {
+        synchronized (this.children) {
+            for (DeviceNode child : this.children) {
+                child.enableSnapshotsRecursive();
             }
+            this.snapshot = buildSnapshot();
+        }
+    }
+
+    public boolean isSnapshotEnabled() {
+        return this.snapshot != null;
+    }
+
+    // latest published version of this subtree; without snapshot mode this
+    // builds a one-off copy instead
+    public DeviceSnapshot getSnapshot() {
+        DeviceSnapshot published = this.snapshot;
+        if (published != null) {
+            return published;
+        }
+
+        synchronized (this.children) {
+            return buildSnapshot();
+        }
+    }
+
+    // must hold the children lock
+    private DeviceSnapshot buildSnapshot() {
+        DeviceSnapshot[] childSnapshots = new DeviceSnapshot[this.children.size()];
+        int idx = 0;
+        for (DeviceNode child : this.children) {
+            DeviceSnapshot childSnapshot = child.snapshot;
+            childSnapshots[idx++] = childSnapshot != null ? childSnapshot : child.getSnapshot();
+        }
+
+        ValueCopy copy = readValue();
+        return new DeviceSnapshot(this.name, copy.type, copy.bits, copy.bytes, copy.text,
+                Attributes.pairs(this.attributes), childSnapshots);
+    }
+
+    // republish this node from its current state and its children's snapshots
+    private void publishSnapshot() {
+        if (this.snapshot == null) {
+            return;
+        }
+
+        synchronized (this.children) {
+            this.snapshot = buildSnapshot();
+        }
+    }
+
+    // republish this node and its ancestors, up to where snapshot mode ends
+    private void publishSnapshots() {
+        for (DeviceNode n = this; n != null && n.snapshot != null; n = n.parent) {
+            n.publishSnapshot();
         }
     }
 
 // *********************************************** //
-// Property change methods
+// Journal methods
+// *********************************************** //
+    // record value changes anywhere in this subtree, including children
+    // added later, to the journal; see ChangeJournal
+    public void enableJournal(ChangeJournal journal) {
+        if (journal == null) {
+            throw new NullPointerException();
+        }
+        setJournal(journal);
+    }
+
+    public void disableJournal() {
+        setJournal(null);
+    }
+
+    public ChangeJournal getJournal() {
+        return this.journal;
+    }
+
+    private void setJournal(ChangeJournal journal) {
+        NodeCursor cursor = NodeCursor.resident(this);
+        while (cursor.next()) {
+            cursor.node().journal = journal;
+        }
+    }
+
+// *********************************************** //
+// Index methods
+// *********************************************** //
+    // index this subtree, including children added later; see AttributeIndex
+    public void enableIndex(AttributeIndex index) {
+        if (index == null) {
+            throw new NullPointerException();
+        }
+        setIndex(index);
+    }
+
+    public void disableIndex() {
+        setIndex(null);
+    }
+
+    public AttributeIndex getIndex() {
+        return this.index;
+    }
+
+    // removed nodes are set to null, which takes them out of the index
+    private void setIndex(AttributeIndex index) {
+        NodeCursor cursor = NodeCursor.resident(this);
+        while (cursor.next()) {
+            DeviceNode node = cursor.node();
+            AttributeIndex old = node.index;
+            node.index = index;
+            if (old != null && old != index) {
+                old.nodeChanged(node);
+            }
+            if (index != null) {
+                index.nodeChanged(node);
+            }
+        }
+    }
+
+// *********************************************** //
+// Lazy subtree methods
 // *********************************************** //
-    private void childEventFired(DeviceNode n) {
-        // this node will be the root node for the event
-        DeviceNode change = this.cloneShallow();
+    // A lazy node's children aren't resident until something asks for them
+    // (the child getters, get(), searchTree() and path lookups, or an update
+    // that reaches below it); then the loader supplies them and they stay
+    // until the cache drops them to stay within its weight. Hashes,
+    // snapshots, versions and protobuf/string output only cover what's
+    // resident at the time.
+
+    private static final class Lazy {
+        private final NodeLoader loader;
+        private final SubtreeCache cache;
+        // guarded by the Lazy's monitor for writes
+        private volatile boolean loaded;
+        // the cache's entry for the last load
+        private volatile SubtreeCache.Entry entry;
+
+        private Lazy(NodeLoader loader, SubtreeCache cache) {
+            this.loader = loader;
+            this.cache = cache;
+        }
+    }
+
+    // make this node lazy; whatever children it has now are dropped in favor
+    // of the loader's
+    public void setLoader(NodeLoader loader, SubtreeCache cache) {
+        if (loader == null || cache == null) {
+            throw new NullPointerException();
+        }
+
+        Lazy old = this.lazy;
+        if (old != null) {
+            old.cache.unloaded(this);
+        }
+
+        // loaded for a moment, so dropChildren() clears out what's here now
+        Lazy l = new Lazy(loader, cache);
+        l.loaded = true;
+        this.lazy = l;
+        dropChildren(l);
+    }
+
+    public boolean isLazy() {
+        return this.lazy != null;
+    }
+
+    // false for a lazy node whose children aren't resident
+    public boolean isLoaded() {
+        Lazy l = this.lazy;
+        return l == null || l.loaded;
+    }
+
+    // drop a lazy node's children now; they're loaded again on next access
+    public void unload() {
+        Lazy l = this.lazy;
+        if (l != null) {
+            l.cache.unloaded(this);
+            dropChildren(l);
+        }
+    }
+
+    void ensureLoaded() {
+        Lazy l = this.lazy;
+        if (l == null) {
+            return;
+        }
+        if (l.loaded) {
+            SubtreeCache.Entry e = l.entry;
+            if (e != null) {
+                e.accessed();
+            }
+            return;
+        }
 
-        // add child event
-        change.addChild(n);
+        List<DeviceNode> evicted;
+        synchronized (l) {
+            if (l.loaded) {
+                return;
+            }
 
-        // fire event
-        changeSupport.firePropertyChange(PROPERTY_CHANGE_NAME, null, change);
+            DeviceNode loadedNode;
+            try {
+                loadedNode = l.loader.load(this);
+            } catch (RuntimeException ex) {
+                // stay unloaded; the next access tries again
+                Logger.getLogger(DeviceNode.class.getName()).log(Level.SEVERE, null, ex);
+                return;
+            }
+
+            long weight = 0;
+            if (loadedNode != null) {
+                weight = l.loader.weigh(loadedNode);
+                for (DeviceNode child : loadedNode.children) {
+                    this.attachChild(child);
+                    child.touchSubtree();
+                }
+                this.structureChanged();
+                this.publishSnapshots();
+            }
+            l.entry = l.cache.loaded(this, weight);
+            l.loaded = true;
+            evicted = l.cache.overflow(this);
+        }
+
+        // outside our own lock, so two loads evicting each other can't deadlock
+        for (DeviceNode node : evicted) {
+            Lazy other = node.lazy;
+            if (other != null) {
+                node.dropChildren(other);
+            }
+        }
+    }
+
+    // silently; the children aren't gone from the device, just not resident
+    private void dropChildren(Lazy l) {
+        List<DeviceNode> dropped;
+        synchronized (l) {
+            if (!l.loaded) {
+                return;
+            }
+            l.loaded = false;
+            synchronized (this.children) {
+                dropped = this.index != null ? new ArrayList<>(this.children) : null;
+                this.children.clear();
+                this.childIndex = null;
+            }
+        }
+        if (dropped != null) {
+            for (DeviceNode node : dropped) {
+                node.setIndex(null);
+            }
+        }
+        this.structureChanged();
+        this.touch();
+        this.publishSnapshots();
+    }
+
+// *********************************************** //
+// Property change methods
+// *********************************************** //
+    // observer is the highest listening node at or above this one, or null
+    // once the event has climbed past it and the record is no longer needed
+    private void childEventFired(DeviceNode n, DeviceNode observer) {
+        // the child already published its new version
+        publishSnapshot();
+
+        DeviceNode change = UNRECORDED;
+        if (observer != null) {
+            // this node will be the root node for the event
+            change = this.cloneShallow();
+
+            // add child event
+            change.addChild(n);
+
+            // fire event
+            if (hasListeners()) {
+                changeSupport.firePropertyChange(PROPERTY_CHANGE_NAME, null, change);
+            }
+        }
 
         // notify parent, if applicable
         if (parent != null) {
-            parent.childEventFired(change);
+            parent.childEventFired(change, observer == this ? null : observer);
         }
     }
 
     public PropertyChangeSupport getChangeSupport() {
-        return changeSupport;
+        PropertyChangeSupport support = this.changeSupport;
+        if (support == null) {
+            synchronized (this) {
+                support = this.changeSupport;
+                if (support == null) {
+                    support = new PropertyChangeSupport(this);
+                    this.changeSupport = support;
+                }
+            }
+        }
+        return support;
+    }
+
+    private boolean hasListeners() {
+        PropertyChangeSupport support = this.changeSupport;
+        return support != null && support.hasListeners(PROPERTY_CHANGE_NAME);
+    }
+
+    // highest node from here up to the root with listeners attached, or null
+    private DeviceNode topObserver() {
+        DeviceNode ret = null;
+        for (DeviceNode n = this; n != null; n = n.parent) {
+            if (n.hasListeners()) {
+                ret = n;
+            }
+        }
+        return ret;
     }
 
 // *********************************************** //
@@ -645,16 +1709,12 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
             // otherwise do a shallow clone on this node
             ret = this.cloneShallow();
 
-            // loop through all children 
-            if (this.children.size() > 0) {
-                synchronized (this.children) {
-                    for (DeviceNode child : this.children) {
-                        try {
-                            ret.addChild(child.get());
-                        } catch (Exception ex) {
-                            Logger.getLogger(DeviceNode.class.getName()).log(Level.SEVERE, null, ex);
-                        }
-                    }
+            // loop through all children, as they were when the loop started
+            for (DeviceNode child : this.getChildren()) {
+                try {
+                    ret.attachChild(child.get());
+                } catch (Exception ex) {
+                    Logger.getLogger(DeviceNode.class.getName()).log(Level.SEVERE, null, ex);
                 }
             }
         }
@@ -662,6 +1722,61 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
         return ret;
     }
 
+    // same as get(), split over the ForkJoin common pool for big trees; get
+    // handlers in the subtree are then called from several threads at once
+    public DeviceNode getParallel() {
+        return getParallel(new HashMap<>());
+    }
+
+    public DeviceNode getParallel(HashMap<String, String> queryParameters) {
+        return getTransform(this, queryParameters).applyParallel(this);
+    }
+
+    // same results as get(): only the root's handler sees the query
+    // parameters, the others get an empty map, and a child whose handler
+    // throws is logged and left out
+    private static TreeTransform<DeviceNode> getTransform(DeviceNode root, HashMap<String, String> queryParameters) {
+        return new TreeTransform<DeviceNode>() {
+            @Override
+            protected List<DeviceNode> children(DeviceNode node) {
+                // a get handler answers for its whole subtree
+                return node.getHandle != null ? Collections.<DeviceNode>emptyList() : node.getChildren();
+            }
+
+            @Override
+            protected DeviceNode combine(DeviceNode node, List<DeviceNode> children, List<DeviceNode> results) {
+                // fire getHandle, if it's attached
+                NodeGetHandler handler = node.getHandle;
+                if (handler != null) {
+                    if (node == root) {
+                        return handler.handle(queryParameters);
+                    }
+                    try {
+                        return handler.handle(new HashMap<>());
+                    } catch (Exception ex) {
+                        Logger.getLogger(DeviceNode.class.getName()).log(Level.SEVERE, null, ex);
+                        return null;
+                    }
+                }
+
+                // otherwise a shallow clone of this node, with the children's copies
+                DeviceNode ret = node.cloneShallow();
+                for (DeviceNode child : results) {
+                    if (child == null) {
+                        // its handler failed or gave nothing
+                        continue;
+                    }
+                    try {
+                        ret.attachChild(child);
+                    } catch (Exception ex) {
+                        Logger.getLogger(DeviceNode.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+                return ret;
+            }
+        };
+    }
+
     public void set(DeviceNode newNode) {
         // make sure it's this node
         if (this.compareTo(newNode) == 0) {
@@ -681,27 +1796,23 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
 
     // shallow clone, mostly for event generation purposes
     public DeviceNode cloneShallow() {
-        DeviceNode n = new DeviceNode(this.getName(), this.getValue());
-        for (String str : this.getAttributes().keySet()) {
-            n.addAttribute(str, this.getAttribute(str));
-        }
+        DeviceNode n = new DeviceNode(this.getName());
+        n.copyValue(this);
+        // pair arrays are immutable, so the clone can share them
+        n.attributes = Attributes.copy(this.attributes);
         return n;
     }
 
     public String getNodePath() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(this.parent != null ? this.parent.getNodePath() : "").append("/").append(this.getName());
-        if (this.getAttribute("_id") != null && this.getAttribute("_id").trim().length() > 0) {
-            sb.append("/_").append(this.getAttribute("_id").trim());
-        }
-
-        return sb.toString();
+        // walks up rather than recursing, so deep trees don't overflow the stack
+        return NodeCursor.getNodePath(this);
     }
 
     @Override
     public void propertyChange(PropertyChangeEvent evt) {
         // we don't do anything here yet...
-        // the updateNode() and childEventFired() methods take care of recursion
+        // the updateNode() and childEventFired() methods take care of recursion,
+        // so parents no longer register themselves as listeners on their children
     }
 
     public static String trimPath(String str, int levels) {
@@ -721,24 +1832,28 @@ public class DeviceNode implements PropertyChangeListener, Comparable<DeviceNode
 
     public String getString(int level, int maxDepth) {
         StringBuilder ret = new StringBuilder();
-        ret.append(this.getName());
-        if (this.getValue() != null) {
-            ret.append(": ").append(this.getValue().toString());
-        }
-        for (String key : this.getAttributes().keySet()) {
-            ret.append(" [").append(key).append(" = ").append(this.attributes.get(key)).append("]");
-        }
-        ret.append("\n");
-        String spaces = "";
-        for (int idx = 0; idx < level; idx++) {
-            spaces += "    ";
-        }
+        NodeCursor cursor = NodeCursor.depthFirst(this, false);
+        while (cursor.next()) {
+            DeviceNode node = cursor.node();
+            int depth = cursor.depth();
+            // a child is indented one step per level above it
+            for (int idx = 1 - level; depth > 0 && idx < depth; idx++) {
+                ret.append("    ");
+            }
 
-        if (maxDepth == -1 || level < maxDepth) {
-            synchronized (this.children) {
-                for (DeviceNode child : this.children) {
-                    ret.append(spaces).append(child.getString(level + 1, maxDepth));
-                }
+            ret.append(node.getName());
+            String value = node.getValue();
+            if (value != null) {
+                ret.append(": ").append(value);
+            }
+            Object[] attributePairs = Attributes.pairs(node.attributes);
+            for (int idx = 0; idx < attributePairs.length; idx += 2) {
+                ret.append(" [").append(attributePairs[idx]).append(" = ").append(attributePairs[idx + 1]).append("]");
+            }
+            ret.append("\n");
+
+            if (maxDepth != -1 && level + depth >= maxDepth) {
+                cursor.skipChildren();
             }
         }
         return ret.toString();
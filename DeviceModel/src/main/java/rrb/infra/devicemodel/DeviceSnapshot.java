@@ -0,0 +1,141 @@
+package rrb.infra.devicemodel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// Immutable point-in-time copy of a node and its subtree, published by
+// DeviceNode in snapshot mode. A new version shares every unchanged child.
+public final class DeviceSnapshot {
+    private static final DeviceSnapshot[] NO_CHILDREN = new DeviceSnapshot[0];
+
+    private final String name;
+    private final ValueType valueType;
+    private final long valueBits;
+    private final byte[] valueBytes;
+    // text form; formatted on first request for typed values
+    private String value;
+    // immutable key/value pairs, shared with the node they came from
+    private final Object[] attributes;
+    private final DeviceSnapshot[] children;
+
+    DeviceSnapshot(String name, ValueType valueType, long valueBits, byte[] valueBytes, String value,
+            Object[] attributes, DeviceSnapshot[] children) {
+        this.name = name;
+        this.valueType = valueType;
+        this.valueBits = valueBits;
+        this.valueBytes = valueBytes;
+        this.value = value;
+        this.attributes = attributes;
+        this.children = children.length == 0 ? NO_CHILDREN : children;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getValue() {
+        String text = this.value;
+        if (text == null && this.valueType != ValueType.STRING) {
+            text = this.valueType.format(this.valueBits, this.valueBytes);
+            this.value = text;
+        }
+        return text;
+    }
+
+    public ValueType getValueType() {
+        return valueType;
+    }
+
+    public long getLongValue() {
+        return valueType.toLong(valueBits, getValue());
+    }
+
+    public double getDoubleValue() {
+        return valueType.toDouble(valueBits, getValue());
+    }
+
+    public boolean getBooleanValue() {
+        return valueType.toBoolean(valueBits, getValue());
+    }
+
+    public Map<String, String> getAttributes() {
+        return new Attributes.View() {
+            @Override
+            Object state() {
+                return attributes;
+            }
+        };
+    }
+
+    public String getAttribute(String name) {
+        return Attributes.get(this.attributes, name);
+    }
+
+    public List<DeviceSnapshot> getChildren() {
+        return Collections.unmodifiableList(Arrays.asList(children));
+    }
+
+    public DeviceSnapshot getChild(String name) {
+        for (DeviceSnapshot child : children) {
+            if (child.name.equals(name)) {
+                return child;
+            }
+        }
+
+        return null;
+    }
+
+    public DeviceSnapshot getChild(String name, String id) {
+        for (DeviceSnapshot child : children) {
+            String childId = child.getAttribute("_id");
+            if (child.name.equals(name) && childId != null && childId.trim().equals(id)) {
+                return child;
+            }
+        }
+
+        return null;
+    }
+
+    // materialize a detached, mutable copy of this snapshot
+    public DeviceNode toDeviceNode() {
+        DeviceNode n = new DeviceNode(this.name);
+        switch (this.valueType) {
+            case LONG:
+                n.setLongValue(this.valueBits);
+                break;
+            case DOUBLE:
+                n.setDoubleValue(Double.longBitsToDouble(this.valueBits));
+                break;
+            case BOOLEAN:
+                n.setBooleanValue(this.valueBits != 0);
+                break;
+            case BYTES:
+                n.setBytesValue(this.valueBytes);
+                break;
+            default:
+                n.setValue(this.value);
+        }
+        for (int idx = 0; idx < this.attributes.length; idx += 2) {
+            n.addAttribute((String) this.attributes[idx], (String) this.attributes[idx + 1]);
+        }
+        for (DeviceSnapshot child : this.children) {
+            n.addChild(child.toDeviceNode());
+        }
+        return n;
+    }
+
+    public DeviceModelProto.DeviceNode.Builder getDeviceNodeProtoBuf() {
+        DeviceModelProto.DeviceNode.Builder devNodeBuilder = DeviceModelProto.DeviceNode.newBuilder();
+
+        devNodeBuilder.setName(this.name);
+        DeviceNode.setProtoValue(devNodeBuilder, this.valueType, this.valueBits, this.valueBytes, this.value);
+        devNodeBuilder.putAllAttributes(this.getAttributes());
+        for (DeviceSnapshot child : this.children) {
+            devNodeBuilder.addChildren(child.getDeviceNodeProtoBuf());
+        }
+
+        return devNodeBuilder;
+    }
+}
@@ -0,0 +1,47 @@
+package rrb.infra.devicemodel;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// Canonical Strings for node names and attribute keys, so repeated names are
+// stored once and compare by identity. Bounded; once full, new names are kept
+// as they are.
+final class Names {
+    static final int MAX_NAMES = 1 << 16;
+
+    private static final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<>();
+
+    private Names() {}
+
+    // the canonical copy of name, adding it to the table if there's room
+    static String canonical(String name) {
+        if (name == null) {
+            return null;
+        }
+
+        String ret = names.get(name);
+        if (ret != null) {
+            return ret;
+        }
+        if (names.size() >= MAX_NAMES) {
+            return name;
+        }
+
+        ret = names.putIfAbsent(name, name);
+        return ret != null ? ret : name;
+    }
+
+    // the canonical copy of name if it's already in the table; for lookups,
+    // where a name nobody has used can't match anything anyway
+    static String lookup(String name) {
+        if (name == null) {
+            return null;
+        }
+
+        String ret = names.get(name);
+        return ret != null ? ret : name;
+    }
+
+    static int size() {
+        return names.size();
+    }
+}
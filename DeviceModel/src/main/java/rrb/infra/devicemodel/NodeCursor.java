@@ -0,0 +1,315 @@
+package rrb.infra.devicemodel;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+// Walks live nodes depth-first (pre-order) or breadth-first with an explicit
+// stack or queue, allocating nothing per node. Each node's children are seen
+// as they were when the walk reached it. One thread at a time.
+public final class NodeCursor {
+
+    public enum Order {
+        DEPTH_FIRST,
+        BREADTH_FIRST
+    }
+
+    private final Order order;
+    private final boolean trackPaths;
+    // false walks only what's resident, for DeviceNode's own upkeep
+    private final boolean load;
+    private final StringBuilder path = new StringBuilder();
+
+    private DeviceNode root;
+    private DeviceNode current;
+    private int depth;
+    private boolean started;
+    // false once skipChildren() was called for the current node
+    private boolean descend;
+
+    // depth-first: a frame per level below the root, holding that level's
+    // child array, how far into it the walk is, and the parent's path length
+    private DeviceNode[][] arrays = new DeviceNode[8][];
+    private int[] limits = new int[8];
+    private int[] positions = new int[8];
+    private int[] pathLengths = new int[8];
+    private int top = -1;
+
+    // breadth-first: ring of nodes still to visit, with their depths
+    private DeviceNode[] queue = new DeviceNode[16];
+    private int[] queueDepths = new int[16];
+    private int head;
+    private int count;
+
+    // ancestors, for building a path without recursing
+    private DeviceNode[] ancestors = new DeviceNode[8];
+
+    public NodeCursor(DeviceNode root, Order order, boolean trackPaths) {
+        this(root, order, trackPaths, true);
+    }
+
+    private NodeCursor(DeviceNode root, Order order, boolean trackPaths, boolean load) {
+        if (order == null) {
+            throw new NullPointerException();
+        }
+
+        this.order = order;
+        this.trackPaths = trackPaths;
+        this.load = load;
+        reset(root);
+    }
+
+    public static NodeCursor depthFirst(DeviceNode root, boolean trackPaths) {
+        return new NodeCursor(root, Order.DEPTH_FIRST, trackPaths);
+    }
+
+    public static NodeCursor breadthFirst(DeviceNode root, boolean trackPaths) {
+        return new NodeCursor(root, Order.BREADTH_FIRST, trackPaths);
+    }
+
+    // depth-first over the resident nodes only, leaving lazy subtrees unloaded
+    static NodeCursor resident(DeviceNode root) {
+        return new NodeCursor(root, Order.DEPTH_FIRST, false, false);
+    }
+
+    // start over at root, keeping the buffers
+    public void reset(DeviceNode root) {
+        while (top >= 0) {
+            arrays[top--] = null;
+        }
+        while (count > 0) {
+            queue[head] = null;
+            head = (head + 1) % queue.length;
+            count--;
+        }
+        head = 0;
+
+        this.root = root;
+        this.current = null;
+        this.depth = 0;
+        this.started = false;
+        this.descend = false;
+        this.path.setLength(0);
+    }
+
+    // move to the next node; false once the walk is done
+    public boolean next() {
+        if (!started) {
+            started = true;
+            if (root == null) {
+                return false;
+            }
+            if (order == Order.BREADTH_FIRST) {
+                enqueue(root, 0);
+                return dequeue();
+            }
+
+            current = root;
+            depth = 0;
+            descend = true;
+            if (trackPaths) {
+                path.setLength(0);
+                appendPath(path, root);
+            }
+            return true;
+        }
+
+        if (current == null) {
+            return false;
+        }
+        return order == Order.DEPTH_FIRST ? nextDepthFirst() : nextBreadthFirst();
+    }
+
+    public DeviceNode node() {
+        return current;
+    }
+
+    // 0 for the node the walk started at
+    public int depth() {
+        return depth;
+    }
+
+    // the current node's path; a buffer reused for every node, null unless
+    // the cursor tracks paths
+    public CharSequence path() {
+        return trackPaths ? path : null;
+    }
+
+    // don't walk below the current node
+    public void skipChildren() {
+        descend = false;
+    }
+
+    // run the visitor over the rest of the walk
+    public void visit(NodeVisitor visitor) {
+        while (next()) {
+            NodeVisitor.Result result = visitor.visit(current, depth, path());
+            if (result == NodeVisitor.Result.STOP) {
+                return;
+            }
+            if (result == NodeVisitor.Result.SKIP_CHILDREN) {
+                skipChildren();
+            }
+        }
+    }
+
+// *********************************************** //
+// Depth first
+// *********************************************** //
+    private boolean nextDepthFirst() {
+        if (descend) {
+            push(current);
+        }
+
+        while (top >= 0) {
+            DeviceNode[] a = arrays[top];
+            while (positions[top] < limits[top]) {
+                DeviceNode child = a[positions[top]++];
+                if (child != null) {
+                    current = child;
+                    depth = top + 1;
+                    descend = true;
+                    if (trackPaths) {
+                        path.setLength(pathLengths[top]);
+                        appendStep(path, child);
+                    }
+                    return true;
+                }
+            }
+            arrays[top--] = null;
+        }
+
+        current = null;
+        return false;
+    }
+
+    private void push(DeviceNode node) {
+        if (load) {
+            node.ensureLoaded();
+        }
+        ChildList list = (ChildList) node.children;
+        int bound = list.end();
+        DeviceNode[] a = list.array();
+        int limit = Math.min(bound, a.length);
+        if (limit == 0) {
+            return;
+        }
+
+        if (++top == arrays.length) {
+            int size = arrays.length * 2;
+            arrays = Arrays.copyOf(arrays, size);
+            limits = Arrays.copyOf(limits, size);
+            positions = Arrays.copyOf(positions, size);
+            pathLengths = Arrays.copyOf(pathLengths, size);
+        }
+        arrays[top] = a;
+        limits[top] = limit;
+        positions[top] = 0;
+        pathLengths[top] = path.length();
+    }
+
+// *********************************************** //
+// Breadth first
+// *********************************************** //
+    private boolean nextBreadthFirst() {
+        if (descend) {
+            if (load) {
+                current.ensureLoaded();
+            }
+            ChildList list = (ChildList) current.children;
+            int bound = list.end();
+            DeviceNode[] a = list.array();
+            int limit = Math.min(bound, a.length);
+            for (int idx = 0; idx < limit; idx++) {
+                if (a[idx] != null) {
+                    enqueue(a[idx], depth + 1);
+                }
+            }
+        }
+        return dequeue();
+    }
+
+    private void enqueue(DeviceNode node, int nodeDepth) {
+        if (count == queue.length) {
+            // unroll the ring into a twice as big one
+            DeviceNode[] nodes = new DeviceNode[queue.length * 2];
+            int[] depths = new int[nodes.length];
+            for (int idx = 0; idx < count; idx++) {
+                nodes[idx] = queue[(head + idx) % queue.length];
+                depths[idx] = queueDepths[(head + idx) % queue.length];
+            }
+            queue = nodes;
+            queueDepths = depths;
+            head = 0;
+        }
+
+        int slot = (head + count) % queue.length;
+        queue[slot] = node;
+        queueDepths[slot] = nodeDepth;
+        count++;
+    }
+
+    private boolean dequeue() {
+        if (count == 0) {
+            current = null;
+            return false;
+        }
+
+        current = queue[head];
+        depth = queueDepths[head];
+        queue[head] = null;
+        head = (head + 1) % queue.length;
+        count--;
+        descend = true;
+
+        if (trackPaths) {
+            path.setLength(0);
+            appendPath(path, current);
+        }
+        return true;
+    }
+
+// *********************************************** //
+// Paths
+// *********************************************** //
+    // the node's full path, same as getNodePath(), by walking up instead of recursing
+    private void appendPath(StringBuilder sb, DeviceNode node) {
+        int levels = 0;
+        for (DeviceNode n = node; n != null; n = n.parent) {
+            if (levels == ancestors.length) {
+                ancestors = Arrays.copyOf(ancestors, levels * 2);
+            }
+            ancestors[levels++] = n;
+        }
+        while (levels > 0) {
+            appendStep(sb, ancestors[--levels]);
+            ancestors[levels] = null;
+        }
+    }
+
+    static String getNodePath(DeviceNode node) {
+        ArrayDeque<DeviceNode> ancestors = new ArrayDeque<>();
+        for (DeviceNode n = node; n != null; n = n.parent) {
+            ancestors.push(n);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (DeviceNode n : ancestors) {
+            appendStep(sb, n);
+        }
+        return sb.toString();
+    }
+
+    // "/name", plus "/_id" if the node has a non-blank _id; also the keys
+    // CoalescingChangeListener merges by
+    static void appendStep(StringBuilder sb, DeviceNode node) {
+        sb.append('/').append(node.getName());
+        String id = node.getAttribute("_id");
+        if (id != null) {
+            if (id.length() > 0 && id.charAt(0) > ' ' && id.charAt(id.length() - 1) > ' ') {
+                sb.append("/_").append(id);
+            } else if (id.trim().length() > 0) {
+                sb.append("/_").append(id.trim());
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package rrb.infra.devicemodel;
+
+// Loads a lazy node's children (see DeviceNode.setLoader()) when first needed,
+// and again after the SubtreeCache has dropped them.
+public abstract class NodeLoader {
+    // return a node whose children become the lazy node's children; the
+    // returned node itself is thrown away. null loads nothing
+    public abstract DeviceNode load(DeviceNode node);
+
+    // how much of the cache's budget the loaded subtree takes; by default
+    // the number of nodes in it, not counting the returned node
+    public long weigh(DeviceNode loaded) {
+        long ret = 0;
+        for (DeviceNode child : loaded.getChildren()) {
+            ret += 1 + weigh(child);
+        }
+        return ret;
+    }
+}
@@ -1,5 +1,11 @@
 package rrb.infra.devicemodel;
 
+import java.beans.PropertyChangeListener;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
 /**
  *
  * @author pobzeb
@@ -7,7 +13,28 @@ package rrb.infra.devicemodel;
 public class NodeManager {
     private static final Object LOCK = new Object();
     private static NodeManager _instance;
+    // past this many cached paths the cache starts over
+    private static final int PATH_CACHE_SIZE = 4096;
     private final DeviceNode rootNode;
+    // path -> node resolutions, each tagged with the tree's structure version
+    // it was resolved against; a structural change makes them all stale
+    private final ConcurrentHashMap<String, CachedPath> pathCache = new ConcurrentHashMap<>();
+    // compiled queries, so a query string is only parsed once
+    private final ConcurrentHashMap<String, NodeQuery> queryCache = new ConcurrentHashMap<>();
+    // pattern subscriptions, fed by a single listener on the root while there are any
+    private final SubscriptionTrie subscriptions = new SubscriptionTrie();
+    private final PropertyChangeListener subscriptionListener =
+            evt -> this.subscriptions.dispatch((DeviceNode) evt.getNewValue());
+
+    private static class CachedPath {
+        private final DeviceNode node;
+        private final int structureVersion;
+
+        private CachedPath(DeviceNode node, int structureVersion) {
+            this.node = node;
+            this.structureVersion = structureVersion;
+        }
+    }
 
     private NodeManager(DeviceNode rootNode) {
         this.rootNode = rootNode;
@@ -40,7 +67,7 @@ public class NodeManager {
 
     public static DeviceNode toDeviceNode(DeviceModelProto.DeviceNode node) {
         DeviceNode ret = new DeviceNode(node.getName());
-        if (node.getValue() != null && node.getValue().trim().length() > 0) ret.setValue(node.getValue());
+        DeviceNode.getProtoValue(node, ret);
         for (String key : node.getAttributesMap().keySet()) {
             ret.addAttribute(key, node.getAttributesMap().get(key));
         }
@@ -50,9 +77,44 @@ public class NodeManager {
         return ret;
     }
 
+    // resolve the path against the root, going through the path cache
+    private DeviceNode resolve(String path, NodePath compiled) {
+        if (path == null) {
+            return null;
+        }
+
+        // read the version before resolving so a concurrent change leaves this entry stale
+        int version = this.rootNode.getStructureVersion();
+        CachedPath cached = this.pathCache.get(path);
+        if (cached != null && cached.structureVersion == version) {
+            return cached.node;
+        }
+
+        DeviceNode node = (compiled != null ? compiled : NodePath.compile(path)).resolve(this.rootNode);
+        if (node != null) {
+            if (this.pathCache.size() >= PATH_CACHE_SIZE) {
+                this.pathCache.clear();
+            }
+            this.pathCache.put(path, new CachedPath(node, version));
+        }
+
+        return node;
+    }
+
     public static DeviceNode getChildByPath(String path) {
         try {
-            return getInstance().rootNode.getChildByPath(path);
+            return getInstance().resolve(path, null);
+        }
+        catch (Exception ex) {
+            System.err.println("Error getting child by path: "+path);
+            ex.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    public static DeviceNode getChildByPath(NodePath path) {
+        try {
+            return getInstance().resolve(path.toString(), path);
         }
         catch (Exception ex) {
             System.err.println("Error getting child by path: "+path);
@@ -63,9 +125,61 @@ public class NodeManager {
 
     public static void update(String path, String value) {
         try {
-            DeviceNode node = getInstance().rootNode.getChildByPath(path).cloneShallow();
-            node.setValue(value);
-            getInstance().rootNode.getChildByPath(path).update(node);
+            update(getInstance().resolve(path, null), value);
+        }
+        catch (Exception ex) {
+            System.err.println("Error updating node: "+path);
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    public static void update(NodePath path, String value) {
+        try {
+            update(getInstance().resolve(path.toString(), path), value);
+        }
+        catch (Exception ex) {
+            System.err.println("Error updating node: "+path);
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    private static void update(DeviceNode target, String value) {
+        DeviceNode node = target.cloneShallow();
+        node.setValue(value);
+        target.update(node);
+    }
+
+    // typed updates keep the value in its primitive form, no string formatting
+    public static void update(String path, long value) {
+        update(path, null, node -> node.setLongValue(value));
+    }
+
+    public static void update(NodePath path, long value) {
+        update(path.toString(), path, node -> node.setLongValue(value));
+    }
+
+    public static void update(String path, double value) {
+        update(path, null, node -> node.setDoubleValue(value));
+    }
+
+    public static void update(NodePath path, double value) {
+        update(path.toString(), path, node -> node.setDoubleValue(value));
+    }
+
+    public static void update(String path, boolean value) {
+        update(path, null, node -> node.setBooleanValue(value));
+    }
+
+    public static void update(NodePath path, boolean value) {
+        update(path.toString(), path, node -> node.setBooleanValue(value));
+    }
+
+    private static void update(String path, NodePath compiled, Consumer<DeviceNode> setter) {
+        try {
+            DeviceNode target = getInstance().resolve(path, compiled);
+            DeviceNode node = target.cloneShallow();
+            setter.accept(node);
+            target.update(node);
         }
         catch (Exception ex) {
             System.err.println("Error updating node: "+path);
@@ -75,7 +189,7 @@ public class NodeManager {
 
     public static void update(String path, DeviceNode node) {
         try {
-            getInstance().rootNode.getChildByPath(path).update(node);
+            getInstance().resolve(path, null).update(node);
         }
         catch (Exception ex) {
             System.err.println("Error updating node: "+path);
@@ -83,17 +197,194 @@ public class NodeManager {
         }
     }
 
+    public static void update(NodePath path, DeviceNode node) {
+        try {
+            getInstance().resolve(path.toString(), path).update(node);
+        }
+        catch (Exception ex) {
+            System.err.println("Error updating node: "+path);
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    // apply many path -> value updates as one merged update, so listeners get
+    // a single change event instead of one cascade per value. that fan-out is
+    // all it saves: building the merged update costs more than calling
+    // update() per path (see BatchUpdateCheck in DeviceModelChecks), so with
+    // no listeners, or cheap ones, a loop is faster
+    public static void updateValues(Map<String, String> values) {
+        NodeManager instance = getInstance();
+        IdentityHashMap<DeviceNode, DeviceNode> batch = new IdentityHashMap<>();
+
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            try {
+                DeviceNode target = instance.resolve(entry.getKey(), null);
+                DeviceNode standIn = instance.batchNode(batch, target);
+                if (standIn != null) {
+                    standIn.setValue(entry.getValue());
+                } else {
+                    update(target, entry.getValue());
+                }
+            }
+            catch (Exception ex) {
+                System.err.println("Error updating node: "+entry.getKey());
+                ex.printStackTrace(System.err);
+            }
+        }
+
+        instance.applyBatch(batch);
+    }
+
+    // updateValues() for whole nodes; the same single event, and the same cost
+    public static void updateNodes(Map<String, DeviceNode> nodes) {
+        NodeManager instance = getInstance();
+        IdentityHashMap<DeviceNode, DeviceNode> batch = new IdentityHashMap<>();
+
+        for (Map.Entry<String, DeviceNode> entry : nodes.entrySet()) {
+            try {
+                // merge into the batch the same way the node itself would take it
+                DeviceNode target = instance.resolve(entry.getKey(), null);
+                DeviceNode standIn = instance.batchNode(batch, target);
+                if (standIn != null) {
+                    standIn.update(entry.getValue());
+                } else {
+                    target.update(entry.getValue());
+                }
+            }
+            catch (Exception ex) {
+                System.err.println("Error updating node: "+entry.getKey());
+                ex.printStackTrace(System.err);
+            }
+        }
+
+        instance.applyBatch(batch);
+    }
+
+    // the batch's stand-in for this node, with stand-ins for its ancestors, so
+    // paths sharing a prefix share the same part of the update tree; null if
+    // update() wouldn't get from a stand-in back to this node, e.g. when an
+    // unkeyed sibling of the same name would match first, so the entry has to
+    // be applied on its own
+    private DeviceNode batchNode(IdentityHashMap<DeviceNode, DeviceNode> batch, DeviceNode node) {
+        DeviceNode ret = batch.get(node);
+        if (ret == null) {
+            // name and _id are all update() needs to match it up
+            ret = new DeviceNode(node.getName());
+            if (node.getAttribute("_id") != null) {
+                ret.addAttribute("_id", node.getAttribute("_id"));
+            }
+
+            if (node != this.rootNode) {
+                DeviceNode parent = node.getParent();
+                if (parent == null || parent.getChild(ret) != node) {
+                    return null;
+                }
+                DeviceNode parentStandIn = batchNode(batch, parent);
+                if (parentStandIn == null) {
+                    return null;
+                }
+                // a detached tree, nothing to keep up but the links
+                parentStandIn.attachChild(ret);
+            }
+            batch.put(node, ret);
+        }
+
+        return ret;
+    }
+
+    private void applyBatch(IdentityHashMap<DeviceNode, DeviceNode> batch) {
+        DeviceNode root = batch.get(this.rootNode);
+        if (root != null) {
+            this.rootNode.update(root);
+        }
+    }
+
     public static void addChild(String path, DeviceNode child) {
         addChild(path, child, false);
     }
 
     public static void addChild(String path, DeviceNode child, boolean fireUpdate) {
         try {
-            getInstance().rootNode.getChildByPath(path).addChild(child, fireUpdate);
+            getInstance().resolve(path, null).addChild(child, fireUpdate);
         }
         catch (Exception ex) {
             System.err.println("Error adding child node: "+path);
             ex.printStackTrace(System.err);
         }
     }
+
+    // run a query (see NodeQuery) against the root; returns copies of the
+    // matches with the path down to them, or null if nothing matched
+    public static DeviceNode query(String query) {
+        try {
+            NodeManager instance = getInstance();
+            NodeQuery compiled = instance.queryCache.get(query);
+            if (compiled == null) {
+                compiled = NodeQuery.compile(query);
+                if (instance.queryCache.size() >= PATH_CACHE_SIZE) {
+                    instance.queryCache.clear();
+                }
+                instance.queryCache.put(query, compiled);
+            }
+            return compiled.execute(instance.rootNode);
+        }
+        catch (Exception ex) {
+            System.err.println("Error running query: "+query);
+            ex.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    public static DeviceNode query(NodeQuery query) {
+        try {
+            return query.execute(getInstance().rootNode);
+        }
+        catch (Exception ex) {
+            System.err.println("Error running query: "+query);
+            ex.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    // subscribe to changes under nodes matching the pattern, e.g. /Root/DeviceStatus/*
+    // or /Root/Channels/Channel/_*/Temperature; "*" matches any name, "_*" any _id
+    public static void subscribe(String pattern, NodeSubscriber subscriber) {
+        NodeManager instance = getInstance();
+
+        // Strip off any beginning "/" character, same as node paths.
+        String str = pattern.trim();
+        if (str.startsWith("/")) {
+            str = str.substring(1);
+        }
+        String[] segments = str.isEmpty() ? new String[0] : str.split("/");
+
+        // Patterns not starting at the root are relative to it.
+        String rootName = instance.rootNode.getName();
+        if (segments.length == 0 || !(segments[0].equals(rootName) || segments[0].equals("*"))) {
+            String[] relative = new String[segments.length + 1];
+            relative[0] = rootName;
+            System.arraycopy(segments, 0, relative, 1, segments.length);
+            segments = relative;
+        }
+
+        synchronized (instance.subscriptions) {
+            if (instance.subscriptions.isEmpty()) {
+                instance.rootNode.getChangeSupport().addPropertyChangeListener(instance.subscriptionListener);
+            }
+            instance.subscriptions.subscribe(segments, subscriber);
+        }
+    }
+
+    public static void unsubscribe(NodeSubscriber subscriber) {
+        NodeManager instance = getInstance();
+
+        synchronized (instance.subscriptions) {
+            instance.subscriptions.unsubscribe(subscriber);
+
+            // Stop listening once nobody is subscribed so updates go back to not building change records.
+            if (instance.subscriptions.isEmpty()) {
+                instance.rootNode.getChangeSupport().removePropertyChangeListener(instance.subscriptionListener);
+            }
+        }
+    }
 }
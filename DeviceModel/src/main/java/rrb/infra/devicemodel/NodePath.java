@@ -0,0 +1,226 @@
+package rrb.infra.devicemodel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A node path split once into name and _id steps, to resolve repeatedly.
+// Same rules as DeviceNode.searchTree().
+public final class NodePath {
+    private static final String[] NONE = new String[0];
+
+    private final String path;
+    // false for a null or blank path, which never resolves to anything
+    private final boolean valid;
+    // steps when the path starts with the name of the node it's resolved against
+    private final String[] names;
+    private final String[] ids;
+    // steps when the path is relative to that node, plus the node's own _id if given
+    private final String rootId;
+    private final String[] relativeNames;
+    private final String[] relativeIds;
+
+    private NodePath(String path) {
+        this.path = path;
+
+        // No path, nothing to resolve.
+        if (path == null || (path = path.trim()).length() == 0) {
+            this.valid = false;
+            this.names = this.ids = this.relativeNames = this.relativeIds = NONE;
+            this.rootId = null;
+            return;
+        }
+
+        // Strip off any beginning "/" character.
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+
+        this.valid = true;
+        String[] tokens = path.isEmpty() ? NONE : path.split("/");
+
+        // Absolute form, the first segment names the node itself.
+        List<String[]> steps = compile(tokens, 0);
+        this.names = steps.get(0);
+        this.ids = steps.get(1);
+
+        // Relative form, a leading "_<id>" belongs to the node itself.
+        int start = tokens.length > 0 && tokens[0].startsWith("_") ? 1 : 0;
+        this.rootId = start == 1 ? tokens[0].substring(1) : null;
+        steps = compile(tokens, start);
+        this.relativeNames = steps.get(0);
+        this.relativeIds = steps.get(1);
+    }
+
+    public static NodePath compile(String path) {
+        return new NodePath(path);
+    }
+
+    // group the tokens into name steps, each optionally followed by an "_<id>" token
+    private static List<String[]> compile(String[] tokens, int start) {
+        List<String> names = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        for (int idx = start; idx < tokens.length; idx++) {
+            // canonical names compare by identity against the nodes' names
+            names.add(Names.lookup(tokens[idx]));
+            if (idx + 1 < tokens.length && tokens[idx + 1].startsWith("_")) {
+                ids.add(tokens[++idx].substring(1));
+            } else {
+                ids.add(null);
+            }
+        }
+
+        List<String[]> ret = new ArrayList<>(2);
+        ret.add(names.toArray(NONE));
+        ret.add(ids.toArray(NONE));
+        return ret;
+    }
+
+    // first matching node, or null
+    public DeviceNode resolve(DeviceNode from) {
+        List<DeviceNode> ret = new ArrayList<>(1);
+        resolve(from, ret, true);
+        return ret.isEmpty() ? null : ret.get(0);
+    }
+
+    // every matching node, in tree order
+    public List<DeviceNode> resolveAll(DeviceNode from) {
+        List<DeviceNode> ret = new ArrayList<>();
+        resolve(from, ret, false);
+        return ret;
+    }
+
+    // compiled steps, for trees that resolve paths themselves (CompactDeviceTree)
+    boolean isValid() {
+        return valid;
+    }
+
+    String[] names() {
+        return names;
+    }
+
+    String[] ids() {
+        return ids;
+    }
+
+    String rootId() {
+        return rootId;
+    }
+
+    String[] relativeNames() {
+        return relativeNames;
+    }
+
+    String[] relativeIds() {
+        return relativeIds;
+    }
+
+    private void resolve(DeviceNode from, List<DeviceNode> ret, boolean first) {
+        if (!this.valid) {
+            return;
+        }
+
+        // If the path is empty, return this node.
+        if (this.names.length == 0) {
+            ret.add(from);
+        }
+        // Check to see if the root matches this node.
+        else if (this.names[0].equals(from.getName())) {
+            match(from, this.names, this.ids, 0, ret, first);
+        }
+        else if (idMatches(from, this.rootId)) {
+            if (this.relativeNames.length == 0) {
+                ret.add(from);
+            } else {
+                matchChildren(from, this.relativeNames, this.relativeIds, 0, ret, first);
+            }
+        }
+    }
+
+    // the node's name already matched names[idx]
+    private static boolean match(DeviceNode node, String[] names, String[] ids, int idx, List<DeviceNode> ret, boolean first) {
+        if (!idMatches(node, ids[idx])) {
+            return false;
+        }
+
+        // Check to see if there are more path elements.
+        if (idx == names.length - 1) {
+            // We found the node, add it.
+            ret.add(node);
+            return first;
+        }
+
+        return matchChildren(node, names, ids, idx + 1, ret, first);
+    }
+
+    // search the node's children for names[idx]; returns true once done searching
+    private static boolean matchChildren(DeviceNode node, String[] names, String[] ids, int idx, List<DeviceNode> ret, boolean first) {
+        // the lock is only held to read this level; descending while holding
+        // it would block writers to this node for the whole resolution
+        DeviceNode only;
+        DeviceNode[] many = null;
+        node.ensureLoaded();
+        synchronized (node.children) {
+            if (node.childIndex == null) {
+                return false;
+            }
+
+            // Only the children named by the path element, narrowed by id if asked for.
+            List<DeviceNode> candidates = ids[idx] == null
+                    ? node.childIndex.get(names[idx])
+                    : node.childIndex.getById(names[idx], ids[idx]);
+            if (candidates == null) {
+                return false;
+            }
+
+            only = candidates.get(0);
+            if (candidates.size() > 1) {
+                many = candidates.toArray(new DeviceNode[candidates.size()]);
+            }
+        }
+
+        if (many == null) {
+            return match(only, names, ids, idx, ret, first);
+        }
+        for (DeviceNode candidate : many) {
+            if (match(candidate, names, ids, idx, ret, first)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean idMatches(DeviceNode node, String id) {
+        if (id == null) {
+            return true;
+        }
+
+        // Make sure we even have an id to check against.
+        String nodeId = node.getAttribute("_id");
+        if (nodeId == null || nodeId.trim().length() == 0 || id.trim().length() == 0) {
+            return false;
+        }
+
+        return nodeId.trim().equals(id);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.path != null ? this.path.hashCode() : 0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof NodePath)) {
+            return false;
+        }
+
+        String other = ((NodePath) obj).path;
+        return this.path == null ? other == null : this.path.equals(other);
+    }
+
+    @Override
+    public String toString() {
+        return this.path;
+    }
+}
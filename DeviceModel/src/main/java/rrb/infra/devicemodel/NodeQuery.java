@@ -0,0 +1,546 @@
+package rrb.infra.devicemodel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// A query over a device tree, compiled once and run as often as needed; see
+// compile() for the syntax.
+public final class NodeQuery {
+
+    private enum Op {
+        EXISTS, EQ, NE, LT, LE, GT, GE
+    }
+
+    private static final class Predicate {
+        // attribute tests have a key, value tests a path (empty for the node itself)
+        private final String attribute;
+        private final String[] path;
+        private final Op op;
+        private final String literal;
+        // NaN unless the literal is a number
+        private final double number;
+
+        private Predicate(String attribute, String[] path, Op op, String literal) {
+            this.attribute = attribute;
+            this.path = path;
+            this.op = op;
+            this.literal = literal;
+            this.number = literal != null ? ValueType.STRING.toNumber(0, literal) : Double.NaN;
+        }
+    }
+
+    private static final class Step {
+        // true for **
+        private final boolean descendants;
+        // null for * and **
+        private final String name;
+        private String id;
+        private final List<Predicate> predicates = new ArrayList<>();
+
+        private Step(boolean descendants, String name) {
+            this.descendants = descendants;
+            this.name = name;
+        }
+    }
+
+    private final String query;
+    private final Step[] steps;
+    // relative paths to keep under each match; null keeps the whole subtree
+    private final String[][] projection;
+
+    private NodeQuery(String query) {
+        this.query = query;
+
+        String str = query.trim();
+        if (str.startsWith("/")) {
+            str = str.substring(1);
+        }
+
+        // A trailing {...} is the projection.
+        String[][] projected = null;
+        if (str.endsWith("}")) {
+            int open = lastTopLevel(str, '{');
+            if (open < 0) {
+                throw new IllegalArgumentException("Unbalanced '}' in query: " + query);
+            }
+
+            String inner = str.substring(open + 1, str.length() - 1).trim();
+            List<String> paths = inner.isEmpty() ? Collections.<String>emptyList() : split(inner, ',');
+            projected = new String[paths.size()][];
+            for (int idx = 0; idx < paths.size(); idx++) {
+                projected[idx] = names(paths.get(idx).trim());
+            }
+            str = str.substring(0, open).trim();
+        }
+        this.projection = projected;
+
+        List<Step> compiled = new ArrayList<>();
+        for (String token : str.isEmpty() ? Collections.<String>emptyList() : split(str, '/')) {
+            token = token.trim();
+            Step previous = compiled.isEmpty() ? null : compiled.get(compiled.size() - 1);
+            if (token.isEmpty()) {
+                throw new IllegalArgumentException("Empty step in query: " + query);
+            }
+            // "_<id>" narrows the step before it, same as in node paths
+            else if (token.startsWith("_") && token.indexOf('[') < 0 && previous != null && !previous.descendants) {
+                previous.id = token.substring(1);
+            }
+            else if (token.equals("**")) {
+                // ** / ** matches the same as **, with a walk less per node
+                if (previous == null || !previous.descendants) {
+                    compiled.add(new Step(true, null));
+                }
+            }
+            else {
+                compiled.add(step(token));
+            }
+        }
+        this.steps = compiled.toArray(new Step[compiled.size()]);
+    }
+
+    // Steps are separated by "/" as in node paths: a name, * for any name,
+    // ** for any number of levels (none included), and _id after a name or *
+    // to narrow it. Name and * steps take predicates, all of which must hold:
+    // [@key], [@key op literal], [path], [path op literal] and [. op literal]
+    // for the node's own value, op being = != < <= > >=. Both sides compare
+    // as numbers when both are numeric. A trailing {path,...} projects each
+    // match down to those relative paths, {} to the node alone. E.g.
+    //
+    //     /Root/Channels/Channel[Status/State='Alarm']{Temperature}
+    //
+    // A query whose first step names the node it runs against (or is * or
+    // **) starts at that node; any other is relative to it.
+    public static NodeQuery compile(String query) {
+        if (query == null) {
+            throw new NullPointerException();
+        }
+        return new NodeQuery(query);
+    }
+
+// *********************************************** //
+// Parsing
+// *********************************************** //
+    // name or * followed by any predicates
+    private Step step(String token) {
+        int bracket = token.indexOf('[');
+        String name = (bracket < 0 ? token : token.substring(0, bracket)).trim();
+        if (name.isEmpty() || name.equals("**")) {
+            throw new IllegalArgumentException("Bad step '" + token + "' in query: " + query);
+        }
+
+        Step ret = new Step(false, name.equals("*") ? null : Names.lookup(name));
+        int idx = bracket;
+        while (idx >= 0 && idx < token.length()) {
+            if (token.charAt(idx) != '[') {
+                throw new IllegalArgumentException("Expected '[' in step '" + token + "' of query: " + query);
+            }
+            int close = closing(token, idx);
+            ret.predicates.add(predicate(token.substring(idx + 1, close).trim()));
+            idx = close + 1;
+            while (idx < token.length() && token.charAt(idx) == ' ') {
+                idx++;
+            }
+        }
+        return ret;
+    }
+
+    private Predicate predicate(String str) {
+        // find the operator outside of any quotes
+        int at = -1;
+        int length = 0;
+        char quote = 0;
+        for (int idx = 0; idx < str.length() && at < 0; idx++) {
+            char c = str.charAt(idx);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '=' || c == '<' || c == '>' || (c == '!' && idx + 1 < str.length() && str.charAt(idx + 1) == '=')) {
+                at = idx;
+                length = idx + 1 < str.length() && str.charAt(idx + 1) == '=' && c != '=' ? 2 : 1;
+            }
+        }
+
+        String target = (at < 0 ? str : str.substring(0, at)).trim();
+        Op op = Op.EXISTS;
+        String literal = null;
+        if (at >= 0) {
+            switch (str.substring(at, at + length)) {
+                case "=":
+                    op = Op.EQ;
+                    break;
+                case "!=":
+                    op = Op.NE;
+                    break;
+                case "<":
+                    op = Op.LT;
+                    break;
+                case "<=":
+                    op = Op.LE;
+                    break;
+                case ">":
+                    op = Op.GT;
+                    break;
+                default:
+                    op = Op.GE;
+            }
+            literal = unquote(str.substring(at + length).trim());
+        }
+
+        if (target.isEmpty()) {
+            throw new IllegalArgumentException("Bad predicate [" + str + "] in query: " + query);
+        }
+        if (target.startsWith("@")) {
+            return new Predicate(Names.lookup(target.substring(1).trim()), null, op, literal);
+        }
+        if (target.equals(".")) {
+            if (op == Op.EXISTS) {
+                throw new IllegalArgumentException("Predicate [.] needs a comparison in query: " + query);
+            }
+            return new Predicate(null, new String[0], op, literal);
+        }
+        return new Predicate(null, names(target), op, literal);
+    }
+
+    private static String unquote(String str) {
+        if (str.length() >= 2) {
+            char first = str.charAt(0);
+            if ((first == '\'' || first == '"') && str.charAt(str.length() - 1) == first) {
+                return str.substring(1, str.length() - 1);
+            }
+        }
+        return str;
+    }
+
+    // a relative path's names, canonical so they compare by identity
+    private static String[] names(String path) {
+        String[] ret = path.isEmpty() ? new String[0] : path.split("/");
+        for (int idx = 0; idx < ret.length; idx++) {
+            ret[idx] = Names.lookup(ret[idx].trim());
+        }
+        return ret;
+    }
+
+    // split on the separator where it isn't inside brackets, braces or quotes
+    private List<String> split(String str, char separator) {
+        List<String> ret = new ArrayList<>();
+        int depth = 0;
+        char quote = 0;
+        int start = 0;
+        for (int idx = 0; idx < str.length(); idx++) {
+            char c = str.charAt(idx);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '[' || c == '{') {
+                depth++;
+            } else if (c == ']' || c == '}') {
+                depth--;
+            } else if (c == separator && depth == 0) {
+                ret.add(str.substring(start, idx));
+                start = idx + 1;
+            }
+        }
+        if (depth != 0 || quote != 0) {
+            throw new IllegalArgumentException("Unbalanced brackets or quotes in query: " + query);
+        }
+        ret.add(str.substring(start));
+        return ret;
+    }
+
+    // index of the ']' closing the '[' at open, skipping quoted text
+    private int closing(String str, int open) {
+        char quote = 0;
+        for (int idx = open + 1; idx < str.length(); idx++) {
+            char c = str.charAt(idx);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == ']') {
+                return idx;
+            }
+        }
+        throw new IllegalArgumentException("Unclosed '[' in query: " + query);
+    }
+
+    // last c outside of quotes
+    private static int lastTopLevel(String str, char c) {
+        int ret = -1;
+        char quote = 0;
+        for (int idx = 0; idx < str.length(); idx++) {
+            char ch = str.charAt(idx);
+            if (quote != 0) {
+                if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (ch == '\'' || ch == '"') {
+                quote = ch;
+            } else if (ch == c) {
+                ret = idx;
+            }
+        }
+        return ret;
+    }
+
+// *********************************************** //
+// Running
+// *********************************************** //
+    // the matching nodes themselves, in tree order
+    public List<DeviceNode> find(DeviceNode from) {
+        List<DeviceNode> ret = new ArrayList<>();
+        Set<DeviceNode> seen = identitySet();
+        // per step, the nodes a ** step has already walked from or through
+        List<Set<DeviceNode>> walked = new ArrayList<>(this.steps.length);
+        for (Step step : this.steps) {
+            walked.add(step.descendants ? identitySet() : null);
+        }
+
+        if (this.steps.length == 0) {
+            ret.add(from);
+        }
+        // Starts at the node itself, or is relative to it.
+        else if (this.steps[0].descendants || this.steps[0].name == null || this.steps[0].name.equals(from.getName())) {
+            match(from, 0, ret, seen, walked);
+        }
+        else {
+            for (DeviceNode child : candidates(from, this.steps[0])) {
+                match(child, 0, ret, seen, walked);
+            }
+        }
+        return ret;
+    }
+
+    private static Set<DeviceNode> identitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<DeviceNode, Boolean>());
+    }
+
+    // The matches as copies, in a tree of copies of the nodes from the one
+    // the query ran against down to them; only matched (and projected) nodes
+    // and the paths to them are copied. null if nothing matched.
+    public DeviceNode execute(DeviceNode from) {
+        List<DeviceNode> matches = find(from);
+        if (matches.isEmpty()) {
+            return null;
+        }
+
+        IdentityHashMap<DeviceNode, DeviceNode> copies = new IdentityHashMap<>();
+        copies.put(from, from.cloneShallow());
+        for (DeviceNode match : matches) {
+            // gone from under the node since it matched
+            if (copyOf(match, copies) == null) {
+                continue;
+            }
+
+            if (this.projection == null) {
+                copySubtree(match, copies);
+                continue;
+            }
+            for (String[] path : this.projection) {
+                for (DeviceNode target : resolve(match, path)) {
+                    if (copyOf(target, copies) != null) {
+                        copySubtree(target, copies);
+                    }
+                }
+            }
+        }
+        return copies.get(from);
+    }
+
+    // node is a candidate for steps[idx]. A ** step walks the subtree with a
+    // cursor rather than recursing, and skips any node it has walked through
+    // before for the same step, whose subtree it has then already covered;
+    // so a query like /**/a/**/b walks each node at most once per **
+    private void match(DeviceNode node, int idx, List<DeviceNode> ret, Set<DeviceNode> seen,
+            List<Set<DeviceNode>> walked) {
+        Step step = this.steps[idx];
+        boolean last = idx == this.steps.length - 1;
+
+        if (step.descendants) {
+            Set<DeviceNode> done = walked.get(idx);
+            NodeCursor cursor = NodeCursor.depthFirst(node, false);
+            while (cursor.next()) {
+                DeviceNode current = cursor.node();
+                if (!done.add(current)) {
+                    cursor.skipChildren();
+                    continue;
+                }
+
+                if (!last) {
+                    // none of the levels below it, then one more
+                    match(current, idx + 1, ret, seen, walked);
+                } else if (seen.add(current)) {
+                    ret.add(current);
+                }
+            }
+            return;
+        }
+
+        if (!matches(node, step)) {
+            return;
+        }
+        if (last) {
+            if (seen.add(node)) {
+                ret.add(node);
+            }
+            return;
+        }
+
+        for (DeviceNode child : candidates(node, this.steps[idx + 1])) {
+            match(child, idx + 1, ret, seen, walked);
+        }
+    }
+
+    // children that could match the step, or start a ** step; named steps
+    // go through the index
+    private static List<DeviceNode> candidates(DeviceNode node, Step step) {
+        return step.name != null ? node.getChildren(step.name) : node.getChildren();
+    }
+
+    private static boolean matches(DeviceNode node, Step step) {
+        if (step.name != null && !step.name.equals(node.getName())) {
+            return false;
+        }
+        if (step.id != null) {
+            String nodeId = node.getAttribute("_id");
+            if (nodeId == null || !nodeId.trim().equals(step.id)) {
+                return false;
+            }
+        }
+        for (Predicate predicate : step.predicates) {
+            if (!test(node, predicate)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean test(DeviceNode node, Predicate predicate) {
+        if (predicate.attribute != null) {
+            String value = node.getAttribute(predicate.attribute);
+            if (value == null) {
+                return false;
+            }
+            return predicate.op == Op.EXISTS
+                    || compare(ValueType.STRING.toNumber(0, value), value, predicate);
+        }
+
+        // any node at the path will do
+        for (DeviceNode target : resolve(node, predicate.path)) {
+            if (predicate.op == Op.EXISTS) {
+                return true;
+            }
+            String value = target.getValue();
+            if (value != null && compare(target.getNumericValue(), value, predicate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean compare(double number, String text, Predicate predicate) {
+        int cmp;
+        if (!Double.isNaN(predicate.number) && !Double.isNaN(number)) {
+            cmp = Double.compare(number, predicate.number);
+        } else {
+            cmp = text.compareTo(predicate.literal);
+        }
+
+        switch (predicate.op) {
+            case EQ:
+                return cmp == 0;
+            case NE:
+                return cmp != 0;
+            case LT:
+                return cmp < 0;
+            case LE:
+                return cmp <= 0;
+            case GT:
+                return cmp > 0;
+            default:
+                return cmp >= 0;
+        }
+    }
+
+    // every node at the relative path of names below node
+    private static List<DeviceNode> resolve(DeviceNode node, String[] path) {
+        List<DeviceNode> ret = Collections.singletonList(node);
+        for (String name : path) {
+            List<DeviceNode> next = new ArrayList<>();
+            for (DeviceNode parent : ret) {
+                next.addAll(parent.getChildren(name));
+            }
+            ret = next;
+        }
+        return ret;
+    }
+
+    // the node's copy in the result, copying the path down to it as needed;
+    // null if the node isn't under the one the query ran against
+    private static DeviceNode copyOf(DeviceNode node, IdentityHashMap<DeviceNode, DeviceNode> copies) {
+        DeviceNode copy = copies.get(node);
+        if (copy != null) {
+            return copy;
+        }
+
+        DeviceNode parent = node.getParent();
+        DeviceNode parentCopy = parent != null ? copyOf(parent, copies) : null;
+        if (parentCopy == null) {
+            return null;
+        }
+
+        copy = node.cloneShallow();
+        parentCopy.attachChild(copy);
+        copies.put(node, copy);
+        return copy;
+    }
+
+    // must already have a copy; copies whatever below it doesn't have one
+    // yet. parents come before their children in the walk, so a node's
+    // parent always has its copy by the time the node is reached
+    private static void copySubtree(DeviceNode node, IdentityHashMap<DeviceNode, DeviceNode> copies) {
+        NodeCursor cursor = NodeCursor.depthFirst(node, false);
+        cursor.next();
+        while (cursor.next()) {
+            DeviceNode child = cursor.node();
+            if (copies.containsKey(child)) {
+                continue;
+            }
+
+            DeviceNode parentCopy = copies.get(child.getParent());
+            if (parentCopy == null) {
+                // moved somewhere else since the walk reached it
+                cursor.skipChildren();
+                continue;
+            }
+            DeviceNode childCopy = child.cloneShallow();
+            parentCopy.attachChild(childCopy);
+            copies.put(child, childCopy);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return this.query.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof NodeQuery && this.query.equals(((NodeQuery) obj).query);
+    }
+
+    @Override
+    public String toString() {
+        return this.query;
+    }
+}
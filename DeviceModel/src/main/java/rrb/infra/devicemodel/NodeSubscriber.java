@@ -0,0 +1,8 @@
+package rrb.infra.devicemodel;
+
+// Gets the changes matching a pattern given to NodeManager.subscribe().
+public abstract class NodeSubscriber {
+    // path is the full path of the matched node, e.g. /Root/Channels/Channel/_3/Temperature;
+    // change is that node's part of the change record, including any changed children
+    public abstract void handle(String path, DeviceNode change);
+}
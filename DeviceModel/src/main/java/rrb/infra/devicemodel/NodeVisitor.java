@@ -0,0 +1,19 @@
+package rrb.infra.devicemodel;
+
+// Called for each node of a walk; see DeviceNode.visit() and NodeCursor.
+public abstract class NodeVisitor {
+
+    public enum Result {
+        CONTINUE,
+        // don't walk below this node
+        SKIP_CHILDREN,
+        // end the walk here
+        STOP
+    }
+
+    // depth counts from the node the walk started at; path is the node's
+    // path (as getNodePath() gives it) if the walk tracks paths, else null.
+    // The path is a buffer that's reused for the next node, so copy it with
+    // toString() to keep it
+    public abstract Result visit(DeviceNode node, int depth, CharSequence path);
+}
@@ -0,0 +1,135 @@
+package rrb.infra.devicemodel;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Subscription patterns as a trie over their segments: names, "_<id>", "*"
+// for any name and "_*" for any _id.
+final class SubscriptionTrie {
+    private final TrieNode root = new TrieNode();
+
+    private static final class TrieNode {
+        private final ConcurrentHashMap<String, TrieNode> names = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, TrieNode> ids = new ConcurrentHashMap<>();
+        private volatile TrieNode anyName;
+        private volatile TrieNode anyId;
+        private final List<NodeSubscriber> subscribers = new CopyOnWriteArrayList<>();
+
+        private boolean isEmpty() {
+            return subscribers.isEmpty() && names.isEmpty() && ids.isEmpty() && anyName == null && anyId == null;
+        }
+    }
+
+    synchronized void subscribe(String[] segments, NodeSubscriber subscriber) {
+        TrieNode node = root;
+        for (String segment : segments) {
+            TrieNode next;
+            if (segment.equals("*")) {
+                next = node.anyName != null ? node.anyName : (node.anyName = new TrieNode());
+            } else if (segment.equals("_*")) {
+                next = node.anyId != null ? node.anyId : (node.anyId = new TrieNode());
+            } else if (segment.startsWith("_")) {
+                next = node.ids.computeIfAbsent(segment.substring(1).trim(), key -> new TrieNode());
+            } else {
+                next = node.names.computeIfAbsent(segment, key -> new TrieNode());
+            }
+            node = next;
+        }
+        node.subscribers.add(subscriber);
+    }
+
+    // remove the subscriber from every pattern it was subscribed with
+    synchronized void unsubscribe(NodeSubscriber subscriber) {
+        unsubscribe(root, subscriber);
+    }
+
+    // returns true if the node is left empty and can be pruned
+    private static boolean unsubscribe(TrieNode node, NodeSubscriber subscriber) {
+        node.subscribers.remove(subscriber);
+        node.names.values().removeIf(child -> unsubscribe(child, subscriber));
+        node.ids.values().removeIf(child -> unsubscribe(child, subscriber));
+        if (node.anyName != null && unsubscribe(node.anyName, subscriber)) {
+            node.anyName = null;
+        }
+        if (node.anyId != null && unsubscribe(node.anyId, subscriber)) {
+            node.anyId = null;
+        }
+        return node.isEmpty();
+    }
+
+    boolean isEmpty() {
+        return root.isEmpty();
+    }
+
+    // route a change record rooted at the tree's root node to matching subscribers
+    void dispatch(DeviceNode change) {
+        dispatch(root, change, new StringBuilder());
+    }
+
+    // state has not consumed the change node's name yet
+    private static void dispatch(TrieNode state, DeviceNode change, StringBuilder path) {
+        TrieNode named = state.names.get(change.getName());
+        TrieNode anyName = state.anyName;
+        if (named == null && anyName == null) {
+            return;
+        }
+
+        int length = path.length();
+        path.append("/").append(change.getName());
+        String id = change.getAttribute("_id");
+        if (id != null && id.trim().length() > 0) {
+            id = id.trim();
+            path.append("/_").append(id);
+        } else {
+            id = null;
+        }
+
+        if (named != null) {
+            named(named, id, change, path);
+        }
+        if (anyName != null) {
+            named(anyName, id, change, path);
+        }
+        path.setLength(length);
+    }
+
+    // state has consumed the change node's name; its id segment is optional
+    private static void named(TrieNode state, String id, DeviceNode change, StringBuilder path) {
+        matched(state, change, path);
+
+        if (id != null) {
+            TrieNode identified = state.ids.get(id);
+            if (identified != null) {
+                matched(identified, change, path);
+            }
+            TrieNode anyId = state.anyId;
+            if (anyId != null) {
+                matched(anyId, change, path);
+            }
+        }
+    }
+
+    private static void matched(TrieNode state, DeviceNode change, StringBuilder path) {
+        if (!state.subscribers.isEmpty()) {
+            String matchedPath = path.toString();
+            for (NodeSubscriber subscriber : state.subscribers) {
+                try {
+                    subscriber.handle(matchedPath, change);
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(SubscriptionTrie.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+
+        // only descend if some pattern continues past here
+        if (state.names.isEmpty() && state.anyName == null) {
+            return;
+        }
+        for (DeviceNode child : change.getChildren()) {
+            dispatch(state, child, path);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package rrb.infra.devicemodel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps the lazy subtrees sharing it within maxWeight (see NodeLoader.weigh()),
+// dropping ones not used since the last sweep; they load again on next access.
+public class SubtreeCache {
+    private final long maxWeight;
+
+    // lazy node to its entry, oldest load first; guarded by this
+    private final LinkedHashMap<DeviceNode, Entry> resident = new LinkedHashMap<>();
+    private long weight;
+
+    public SubtreeCache(long maxWeight) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("Max weight must be positive");
+        }
+        this.maxWeight = maxWeight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int getResidentCount() {
+        return resident.size();
+    }
+
+    // a resident subtree. reads only set the referenced bit, and only when it
+    // isn't set already, so a loaded node's children cost no lock; the
+    // bookkeeping happens in loaded() and unloaded()
+    static final class Entry {
+        private final long weight;
+        private volatile boolean referenced;
+
+        private Entry(long weight) {
+            this.weight = weight;
+        }
+
+        void accessed() {
+            if (!referenced) {
+                referenced = true;
+            }
+        }
+    }
+
+    // the node's subtree was loaded; returns its entry
+    synchronized Entry loaded(DeviceNode node, long nodeWeight) {
+        Entry ret = new Entry(nodeWeight);
+        // removed first so it goes in at the newest end
+        Entry old = resident.remove(node);
+        resident.put(node, ret);
+        weight += nodeWeight - (old != null ? old.weight : 0);
+        return ret;
+    }
+
+    // the nodes to drop to get back under maxWeight, found with a clock sweep
+    // from the oldest load: a referenced entry has its bit cleared and goes
+    // round again, the first one that wasn't referenced is dropped. the node
+    // just loaded is never one of them, even if it's over on its own
+    synchronized List<DeviceNode> overflow(DeviceNode keep) {
+        if (weight <= maxWeight) {
+            return Collections.emptyList();
+        }
+
+        List<DeviceNode> ret = new ArrayList<>();
+        Map<DeviceNode, Entry> second = new LinkedHashMap<>();
+        while (weight > maxWeight) {
+            Iterator<Map.Entry<DeviceNode, Entry>> it = resident.entrySet().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                Map.Entry<DeviceNode, Entry> mapEntry = it.next();
+                DeviceNode node = mapEntry.getKey();
+                Entry entry = mapEntry.getValue();
+                if (node == keep) {
+                    continue;
+                }
+                it.remove();
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    second.put(node, entry);
+                } else {
+                    weight -= entry.weight;
+                    ret.add(node);
+                }
+            }
+            if (second.isEmpty()) {
+                // only the kept node is left
+                break;
+            }
+            resident.putAll(second);
+            second.clear();
+        }
+        return ret;
+    }
+
+    synchronized void unloaded(DeviceNode node) {
+        Entry old = resident.remove(node);
+        if (old != null) {
+            weight -= old.weight;
+        }
+    }
+}
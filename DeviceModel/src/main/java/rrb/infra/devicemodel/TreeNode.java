@@ -0,0 +1,52 @@
+package rrb.infra.devicemodel;
+
+import java.util.List;
+import java.util.Map;
+
+// What DeviceNode and CompactDeviceTree.Node have in common: navigation,
+// path lookups and searchTree, update, and adding and removing children.
+// Code written against TreeNode works on either tree; N is the node type
+// the tree hands back, so a walk stays in the tree it started in.
+public interface TreeNode<N extends TreeNode<N>> {
+    String getName();
+
+    String getValue();
+
+    String getAttribute(String name);
+
+    Map<String, String> getAttributes();
+
+    // null for the root
+    N getParent();
+
+    List<N> getChildren();
+
+    // null if there's no such child
+    N getChild(int idx);
+
+    N getChild(String name);
+
+    N getChild(String name, String id);
+
+    boolean hasChild(String name);
+
+    N getChildByPath(String path);
+
+    N getChildByPath(NodePath path);
+
+    List<N> searchTree(String path);
+
+    String getNodePath();
+
+    void update(DeviceNode updatedNode);
+
+    // the child as it is in this tree; DeviceNode attaches the child itself,
+    // CompactDeviceTree copies it in
+    N addChild(DeviceNode child);
+
+    N addChild(DeviceNode child, boolean fireUpdate);
+
+    void removeChild(String name);
+
+    void removeChild(String name, String id);
+}
@@ -0,0 +1,268 @@
+package rrb.infra.devicemodel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+// Builds a result for a whole tree bottom-up (a copy, protobuf, XML, JSON):
+// combine() gets each node with its children's finished results. apply() runs
+// on the calling thread; applyParallel() splits the tree over a ForkJoinPool,
+// in which case combine() and children() run on several threads at once.
+public abstract class TreeTransform<T> {
+    // about where the forking overhead stops showing
+    public static final int DEFAULT_THRESHOLD = 2048;
+
+    // the children to descend into, in the order combine() gets them; may be
+    // the live list, each node's is copied once before the walk reads it
+    protected List<DeviceNode> children(DeviceNode node) {
+        return node.getChildren();
+    }
+
+    // the node's result; results.get(idx) is the result for children.get(idx)
+    protected abstract T combine(DeviceNode node, List<DeviceNode> children, List<T> results);
+
+    public final T apply(DeviceNode root) {
+        return walk(root, null, 0);
+    }
+
+    public final T applyParallel(DeviceNode root) {
+        return applyParallel(root, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    // a subtree of at least threshold nodes gets its own task, smaller
+    // siblings are batched into tasks of about threshold nodes, and each
+    // node's largest child stays on the same task so chains don't nest tasks
+    public final T applyParallel(DeviceNode root, ForkJoinPool pool, int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold must be positive");
+        }
+
+        NodeCursor counter = NodeCursor.resident(null);
+        if (count(counter, root, threshold) < threshold) {
+            // too small to be worth splitting
+            return apply(root);
+        }
+        return pool.invoke(new SubtreeTask(root, threshold));
+    }
+
+// *********************************************** //
+// Walking
+// *********************************************** //
+    // a node whose children are being worked through
+    private final class Frame {
+        private final DeviceNode node;
+        private final List<DeviceNode> children;
+        private final Object[] results;
+        // children done already, or by forked tasks, which fill in their own results
+        private final boolean[] forked;
+        private List<ForkJoinTask<?>> forks;
+        private int next;
+
+        private Frame(DeviceNode node) {
+            // a copy, so children added or removed meanwhile can't shift the
+            // results against it
+            List<DeviceNode> live = children(node);
+            this.node = node;
+            this.children = live.isEmpty() ? Collections.<DeviceNode>emptyList() : new ArrayList<>(live);
+            this.results = new Object[children.size()];
+            this.forked = new boolean[children.size()];
+        }
+    }
+
+    // post-order walk with an explicit stack; with a counter (inside a
+    // pool) the children are split off into tasks as described above
+    private T walk(DeviceNode root, NodeCursor counter, int threshold) {
+        ArrayDeque<Frame> stack = new ArrayDeque<>();
+        stack.push(frame(root, counter, threshold));
+
+        while (true) {
+            Frame f = stack.peek();
+            while (f.next < f.children.size() && f.forked[f.next]) {
+                f.next++;
+            }
+            if (f.next < f.children.size()) {
+                stack.push(frame(f.children.get(f.next++), counter, threshold));
+                continue;
+            }
+
+            if (f.forks != null) {
+                for (ForkJoinTask<?> fork : f.forks) {
+                    fork.join();
+                }
+            }
+            @SuppressWarnings("unchecked")
+            List<T> results = (List<T>) Arrays.asList(f.results);
+            T result = combine(f.node, f.children, results);
+
+            stack.pop();
+            if (stack.isEmpty()) {
+                return result;
+            }
+            Frame parent = stack.peek();
+            parent.results[parent.next - 1] = result;
+        }
+    }
+
+    private Frame frame(DeviceNode node, NodeCursor counter, int threshold) {
+        Frame f = new Frame(node);
+        if (counter == null || f.children.size() < 2) {
+            return f;
+        }
+
+        int[] sizes = sizes(f.children, counter, threshold);
+
+        // keep the unfinished child, or the first of the big ones, for this
+        // task; fork the rest, batching the small ones
+        boolean kept = false;
+        int batchStart = -1;
+        int batchSize = 0;
+        for (int idx = 0; idx < f.children.size(); idx++) {
+            DeviceNode child = f.children.get(idx);
+            int size = sizes[idx];
+            if (size < 0) {
+                // batches are runs of small children only
+                if (batchStart >= 0) {
+                    fork(f, new BatchTask(f.children, batchStart, idx, f.results), batchStart, idx);
+                    batchStart = -1;
+                    batchSize = 0;
+                }
+                if (kept) {
+                    fork(f, new SubtreeTask(child, threshold, f.results, idx), idx, idx + 1);
+                }
+                kept = true;
+                continue;
+            }
+
+            if (batchStart < 0) {
+                batchStart = idx;
+            }
+            batchSize += size;
+            if (batchSize >= threshold) {
+                fork(f, new BatchTask(f.children, batchStart, idx + 1, f.results), batchStart, idx + 1);
+                batchStart = -1;
+                batchSize = 0;
+            }
+        }
+        if (batchStart >= 0) {
+            // less than a task's worth left; walked here rather than forked
+            for (int idx = batchStart; idx < f.children.size(); idx++) {
+                f.results[idx] = walk(f.children.get(idx), null, 0);
+                f.forked[idx] = true;
+            }
+        }
+        return f;
+    }
+
+    private void fork(Frame f, ForkJoinTask<?> task, int from, int to) {
+        if (f.forks == null) {
+            f.forks = new ArrayList<>();
+        }
+        for (int idx = from; idx < to; idx++) {
+            f.forked[idx] = true;
+        }
+        f.forks.add(task.fork());
+    }
+
+    // Each child's size, or -1 for the children left unfinished: the ones
+    // with at least threshold nodes, or the largest if all others are
+    // smaller. Counting goes in rounds with a cap that doubles each round,
+    // so a child of n nodes costs about 2n to count, and stops once only
+    // one child is left.
+    private static int[] sizes(List<DeviceNode> children, NodeCursor counter, int threshold) {
+        int[] ret = new int[children.size()];
+        int[] pending = new int[children.size()];
+        int left = children.size();
+        for (int idx = 0; idx < left; idx++) {
+            ret[idx] = -1;
+            pending[idx] = idx;
+        }
+
+        for (int cap = Math.min(2, threshold); left > 1; cap = Math.min(threshold, cap * 2)) {
+            int stillLeft = 0;
+            for (int pos = 0; pos < left; pos++) {
+                int idx = pending[pos];
+                int size = count(counter, children.get(idx), cap);
+                if (size < cap) {
+                    ret[idx] = size;
+                } else {
+                    pending[stillLeft++] = idx;
+                }
+            }
+            left = stillLeft;
+            if (cap == threshold) {
+                break;
+            }
+        }
+        return ret;
+    }
+
+    // nodes in the subtree, but no more than cap; only what's resident
+    private static int count(NodeCursor counter, DeviceNode node, int cap) {
+        counter.reset(node);
+        int ret = 0;
+        while (ret < cap && counter.next()) {
+            ret++;
+        }
+        return ret;
+    }
+
+    // a big subtree, itself split further
+    private final class SubtreeTask extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+
+        private final DeviceNode node;
+        private final int threshold;
+        private final Object[] results;
+        private final int slot;
+
+        private SubtreeTask(DeviceNode node, int threshold) {
+            this(node, threshold, null, -1);
+        }
+
+        private SubtreeTask(DeviceNode node, int threshold, Object[] results, int slot) {
+            this.node = node;
+            this.threshold = threshold;
+            this.results = results;
+            this.slot = slot;
+        }
+
+        @Override
+        protected T compute() {
+            T result = walk(node, NodeCursor.resident(null), threshold);
+            if (results != null) {
+                results[slot] = result;
+            }
+            return result;
+        }
+    }
+
+    // a run of small sibling subtrees, each walked on this thread
+    private final class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<DeviceNode> children;
+        private final int from;
+        private final int to;
+        private final Object[] results;
+
+        private BatchTask(List<DeviceNode> children, int from, int to, Object[] results) {
+            this.children = children;
+            this.from = from;
+            this.to = to;
+            this.results = results;
+        }
+
+        @Override
+        protected void compute() {
+            for (int idx = from; idx < to; idx++) {
+                results[idx] = walk(children.get(idx), null, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package rrb.infra.devicemodel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+// How a node's value is stored: STRING as given, the rest as primitives or
+// bytes, formatted as text only when asked.
+public enum ValueType {
+    STRING,
+    LONG,
+    DOUBLE,
+    BOOLEAN,
+    BYTES;
+
+    // text form of a typed value; LONG and BOOLEAN bits are the value itself,
+    // DOUBLE bits are Double.doubleToLongBits() and BYTES are Base64 encoded
+    String format(long bits, byte[] bytes) {
+        switch (this) {
+            case LONG:
+                return Long.toString(bits);
+            case DOUBLE:
+                return Double.toString(Double.longBitsToDouble(bits));
+            case BOOLEAN:
+                return bits != 0 ? "true" : "false";
+            case BYTES:
+                return bytes != null ? Base64.getEncoder().encodeToString(bytes) : null;
+            default:
+                return null;
+        }
+    }
+
+    // primitive bits of a STRING value read as this type
+    long parse(String text) {
+        switch (this) {
+            case LONG:
+                return Long.parseLong(text.trim());
+            case DOUBLE:
+                return Double.doubleToLongBits(Double.parseDouble(text.trim()));
+            case BOOLEAN:
+                return Boolean.parseBoolean(text.trim()) ? 1 : 0;
+            default:
+                throw new IllegalArgumentException("Not a primitive value type: " + this);
+        }
+    }
+
+    // numeric and boolean views of a value; text is only read for STRING and
+    // BYTES, and no value at all reads as 0, 0.0 or false
+    long toLong(long bits, String text) {
+        switch (this) {
+            case LONG:
+            case BOOLEAN:
+                return bits;
+            case DOUBLE:
+                return (long) Double.longBitsToDouble(bits);
+            default:
+                return text != null ? LONG.parse(text) : 0;
+        }
+    }
+
+    double toDouble(long bits, String text) {
+        switch (this) {
+            case LONG:
+            case BOOLEAN:
+                return bits;
+            case DOUBLE:
+                return Double.longBitsToDouble(bits);
+            default:
+                return text != null ? Double.longBitsToDouble(DOUBLE.parse(text)) : 0;
+        }
+    }
+
+    boolean toBoolean(long bits, String text) {
+        switch (this) {
+            case LONG:
+            case BOOLEAN:
+                return bits != 0;
+            case DOUBLE:
+                return Double.longBitsToDouble(bits) != 0;
+            default:
+                return text != null && BOOLEAN.parse(text) != 0;
+        }
+    }
+
+    // NaN for values that aren't numbers, without the exception a failed parse costs
+    double toNumber(long bits, String text) {
+        switch (this) {
+            case LONG:
+                return bits;
+            case DOUBLE:
+                return Double.longBitsToDouble(bits);
+            case BOOLEAN:
+                return bits != 0 ? 1 : 0;
+            case STRING:
+                // screen out plain text first
+                if (text == null || !looksNumeric(text)) {
+                    return Double.NaN;
+                }
+                try {
+                    return Double.parseDouble(text);
+                } catch (NumberFormatException ex) {
+                    return Double.NaN;
+                }
+            default:
+                return Double.NaN;
+        }
+    }
+
+    private static boolean looksNumeric(String text) {
+        int length = text.length();
+        if (length == 0) {
+            return false;
+        }
+
+        for (int idx = 0; idx < length; idx++) {
+            char c = text.charAt(idx);
+            if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.' && c != 'e' && c != 'E' && c != ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // bytes of a value that isn't BYTES: a STRING is read as the Base64 text
+    // BYTES are written as, so they survive JSON and XML; the others are
+    // their text form in UTF-8
+    byte[] toBytes(String text) {
+        if (text == null) {
+            return null;
+        }
+        if (this == STRING) {
+            return Base64.getDecoder().decode(text.trim());
+        }
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,124 @@
+package rrb.infra.devicemodel;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Hands out DeviceNode versions from per-thread stripes on separate cache
+// lines, with the stripe in the low bits so no two changes share one.
+// currentVersion() is the latest version below every change still in flight,
+// so it never waits on writers.
+final class VersionClock {
+    private static final int STRIPES = stripes();
+    private static final int SHIFT = Integer.numberOfTrailingZeros(STRIPES);
+    // longs per stripe in COUNTERS; 128 bytes, so neighbours never share a line
+    private static final int PAD = 16;
+    private static final long IDLE = Long.MAX_VALUE;
+
+    // counter of stripe s at (s + 1) * PAD, with padding in front of the first
+    private static final AtomicLongArray COUNTERS = new AtomicLongArray((STRIPES + 2) * PAD);
+    // counter every tick has to pass; raised by currentVersion()
+    private static final AtomicLong FLOOR = new AtomicLong();
+    // highest version currentVersion() returned, so it never goes back
+    private static final AtomicLong WATERMARK = new AtomicLong();
+
+    private static final CopyOnWriteArrayList<Slot> SLOTS = new CopyOnWriteArrayList<>();
+    private static final ThreadLocal<Slot> SLOT = new ThreadLocal<Slot>() {
+        @Override
+        protected Slot initialValue() {
+            Slot slot = new Slot(Thread.currentThread());
+            SLOTS.add(slot);
+            return slot;
+        }
+    };
+
+    private static final class Slot {
+        private final WeakReference<Thread> owner;
+        private final int stripe;
+        // FLOOR when the thread's current change began, IDLE between changes
+        private volatile long pending = IDLE;
+        // changes begun and not ended yet, only touched by the owner
+        private int depth;
+
+        private Slot(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+            this.stripe = (int) (mix(owner.getId()) & (STRIPES - 1));
+        }
+    }
+
+    private VersionClock() {
+    }
+
+    // start a change to node; end() has to follow once it has propagated
+    static long begin(DeviceNode node) {
+        Slot slot = SLOT.get();
+        if (slot.depth++ == 0) {
+            slot.pending = FLOOR.get();
+        }
+
+        // read after publishing pending, see currentVersion()
+        long seen = FLOOR.get();
+        for (DeviceNode n = node; n != null; n = n.parent) {
+            seen = Math.max(seen, n.getSubtreeVersion() >>> SHIFT);
+        }
+
+        int idx = (slot.stripe + 1) * PAD;
+        long current;
+        long next;
+        do {
+            current = COUNTERS.get(idx);
+            next = Math.max(current, seen) + 1;
+        } while (!COUNTERS.compareAndSet(idx, current, next));
+        return next << SHIFT | slot.stripe;
+    }
+
+    static void end() {
+        Slot slot = SLOT.get();
+        if (--slot.depth == 0) {
+            slot.pending = IDLE;
+        }
+    }
+
+    // Raising FLOOR before looking at the slots is what makes this safe: a
+    // change whose slot wasn't seen published it after the raise, so it ticks
+    // past everything counted here. A change that was seen began at some
+    // floor, and ticks past that.
+    static long currentVersion() {
+        long issued = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            issued = Math.max(issued, COUNTERS.get((s + 1) * PAD));
+        }
+        FLOOR.accumulateAndGet(issued, Math::max);
+
+        long ret = issued << SHIFT | (STRIPES - 1);
+        for (Slot slot : SLOTS) {
+            long pending = slot.pending;
+            if (pending != IDLE) {
+                ret = Math.min(ret, pending << SHIFT | (STRIPES - 1));
+                continue;
+            }
+            Thread owner = slot.owner.get();
+            if (owner == null || !owner.isAlive()) {
+                SLOTS.remove(slot);
+            }
+        }
+        return WATERMARK.accumulateAndGet(ret, Math::max);
+    }
+
+    // a power of two, about one per core
+    private static int stripes() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int ret = 1;
+        while (ret < cpus && ret < 64) {
+            ret <<= 1;
+        }
+        return ret;
+    }
+
+    // thread ids are sequential; spread them over the stripes
+    private static long mix(long x) {
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+        return x ^ (x >>> 33);
+    }
+}
@@ -3,14 +3,33 @@ package rrb.infra.devicemodel.conversions;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import rrb.infra.devicemodel.DeviceNode;
-import java.io.BufferedReader;
+import rrb.infra.devicemodel.TreeTransform;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -21,87 +40,312 @@ import java.util.Map;
 public class JsonConversions {
 
     public static String nodeToJson(DeviceNode node) {
-        JsonObject o = new JsonObject();
-        o.add(node.getName(), nodeToGson(node));
-        return o.toString();
+        StringWriter out = new StringWriter();
+        try {
+            writeJson(node, out);
+        } catch (IOException ex) {
+            // a StringWriter doesn't throw
+            throw new IllegalStateException(ex);
+        }
+        return out.toString();
     }
 
-    public static JsonObject nodeToGson(DeviceNode node) {
-        JsonObject o = new JsonObject();
+// *********************************************** //
+// Streaming writer
+// *********************************************** //
+    // Writes the same JSON as nodeToJson() straight to out, in one pass and
+    // without building a JsonObject tree first, so a large tree can be
+    // streamed into a response. Only the open nodes' child lists are held,
+    // and it doesn't recurse. out is flushed but not closed.
+    public static void writeJson(DeviceNode node, Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        // same as JsonObject.toString(), which writes NaN and infinities as they are
+        writer.setLenient(true);
+
+        writer.beginObject();
+        writer.name(node.getName());
+        ArrayDeque<WriteFrame> stack = new ArrayDeque<>();
+        stack.push(beginNode(writer, node));
+
+        while (!stack.isEmpty()) {
+            WriteFrame f = stack.peek();
+            if (f.members != null) {
+                // an array of the children sharing a name
+                if (f.next < f.members.size()) {
+                    stack.push(beginNode(writer, f.members.get(f.next++)));
+                } else {
+                    writer.endArray();
+                    stack.pop();
+                }
+                continue;
+            }
+
+            WriteFrame opened = null;
+            while (opened == null && f.next < f.children.size()) {
+                DeviceNode child = f.children.get(f.next++);
+                List<DeviceNode> group = f.groups.get(child.getName());
+                if (group != null) {
+                    // written where the name first comes up
+                    if (group.get(0) == child) {
+                        writer.name(child.getName());
+                        writer.beginArray();
+                        opened = new WriteFrame(group);
+                    }
+                }
+                else if (child.hasChildren() || child.getAttributes().size() > 0) {
+                    writer.name(child.getName());
+                    opened = beginNode(writer, child);
+                }
+                else if (child.getValue() != null) {
+                    writer.name(child.getName());
+                    writeValue(writer, child);
+                }
+            }
+
+            if (opened != null) {
+                stack.push(opened);
+            } else {
+                writer.endObject();
+                stack.pop();
+            }
+        }
+
+        writer.endObject();
+        writer.flush();
+    }
+
+    // as UTF-8
+    public static void writeJson(DeviceNode node, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writeJson(node, writer);
+        writer.flush();
+    }
+
+    // a node whose object is open, or a group whose array is
+    private static class WriteFrame {
+        private final List<DeviceNode> children;
+        private final Map<String, List<DeviceNode>> groups;
+        private final List<DeviceNode> members;
+        private int next;
+
+        private WriteFrame(List<DeviceNode> children, Map<String, List<DeviceNode>> groups) {
+            this.children = children;
+            this.groups = groups;
+            this.members = null;
+        }
 
-        if (node.getAttributes().size() > 0) {
-            for (String key : node.getAttributes().keySet()) {
-                o.addProperty(key, node.getAttribute(key));
+        private WriteFrame(List<DeviceNode> members) {
+            this.children = null;
+            this.groups = null;
+            this.members = members;
+        }
+    }
+
+    // open the node's object and write its own attributes and value
+    private static WriteFrame beginNode(JsonWriter writer, DeviceNode node) throws IOException {
+        writer.beginObject();
+        Map<String, String> attributes = node.getAttributes();
+        if (attributes.size() > 0) {
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                writer.name(attribute.getKey()).value(attribute.getValue());
             }
 
             if (node.getValue() != null) {
-                o.addProperty("value", node.getValue().toString());
-            }
-        }
-
-        if (node.getChildren().size() > 0) {
-            List<String> childNames = node.getChildrenNamesSorted();
-            String[] children = childNames.toArray(new String[0]);
-            String child;
-            for (int idx = 0; idx < children.length; idx++) {
-                child = children[idx];
-                if (Collections.frequency(childNames, child) > 1) {
-                    JsonArray nodes = new JsonArray();
-                    int baseIdx = idx;
-                    for (; idx < children.length; idx++) {
-                        child = children[idx];
-                        nodes.add(nodeToGson(node.getChildren(child).get(idx - baseIdx)));
+                writer.name("value");
+                writeValue(writer, node);
+            }
+        }
+
+        List<DeviceNode> children = sortedChildren(node);
+        Map<String, List<DeviceNode>> groups = new HashMap<>();
+        for (DeviceNode child : children) {
+            groups.computeIfAbsent(child.getName(), name -> new ArrayList<>(1)).add(child);
+        }
+        groups.values().removeIf(group -> group.size() < 2);
+        return new WriteFrame(children, groups);
+    }
+
+    // same as valueToGson()
+    private static void writeValue(JsonWriter writer, DeviceNode node) throws IOException {
+        switch (node.getValueType()) {
+            case LONG:
+                writer.value(node.getLongValue());
+                break;
+            case DOUBLE:
+                writer.value(node.getDoubleValue());
+                break;
+            case BOOLEAN:
+                writer.value(node.getBooleanValue());
+                break;
+            default:
+                writer.value(node.getValue());
+        }
+    }
+
+// *********************************************** //
+// Gson trees
+// *********************************************** //
+
+    public static JsonObject nodeToGson(DeviceNode node) {
+        return TO_GSON.apply(node);
+    }
+
+    // same as nodeToGson(), split over the ForkJoin common pool for big trees
+    public static JsonObject nodeToGsonParallel(DeviceNode node) {
+        return TO_GSON.applyParallel(node);
+    }
+
+    // Children sharing a name become an array of objects under that name;
+    // a lone child is an object if it has children, otherwise its value,
+    // or an object if it has attributes. A node's own value is only written
+    // (as "value") when it has attributes.
+    private static final TreeTransform<JsonObject> TO_GSON = new TreeTransform<JsonObject>() {
+        @Override
+        protected List<DeviceNode> children(DeviceNode node) {
+            return sortedChildren(node);
+        }
+
+        @Override
+        protected JsonObject combine(DeviceNode node, List<DeviceNode> children, List<JsonObject> results) {
+            JsonObject o = new JsonObject();
+
+            if (node.getAttributes().size() > 0) {
+                for (String key : node.getAttributes().keySet()) {
+                    o.addProperty(key, node.getAttribute(key));
+                }
+
+                if (node.getValue() != null) {
+                    o.add("value", valueToGson(node));
+                }
+            }
+
+            // a name's children can sit among both the leaves and the branches
+            Map<String, JsonArray> arrays = new HashMap<>();
+            for (DeviceNode child : children) {
+                arrays.merge(child.getName(), EMPTY, (a, b) -> new JsonArray());
+            }
+
+            for (int idx = 0; idx < children.size(); idx++) {
+                DeviceNode child = children.get(idx);
+                JsonArray nodes = arrays.get(child.getName());
+                if (nodes != EMPTY) {
+                    if (nodes.size() == 0) {
+                        o.add(child.getName(), nodes);
                     }
-                    o.add(child, nodes);
+                    nodes.add(results.get(idx));
+                }
+                else if (child.hasChildren()) {
+                    o.add(child.getName(), results.get(idx));
                 }
                 else {
-                    if (node.getChild(child).getChildren().size() > 0) {
-                        o.add(child, nodeToGson(node.getChild(child)));
+                    if (child.getValue() != null) {
+                        o.add(child.getName(), valueToGson(child));
                     }
-                    else {
-                        if (node.getChild(child).getValue() != null) {
-                            o.addProperty(child, node.getChild(child).getValue().toString());
-                        }
-                        if (node.getChild(child).getAttributes().size() > 0) {
-                            o.add(child, nodeToGson(node.getChild(child)));
-                        }
+                    if (child.getAttributes().size() > 0) {
+                        o.add(child.getName(), results.get(idx));
                     }
                 }
             }
+
+            return o;
         }
+    };
 
-        return o;
+    // by name, leaves first, as getChildrenNamesSorted() orders them
+    private static List<DeviceNode> sortedChildren(DeviceNode node) {
+        List<DeviceNode> leaves = new ArrayList<>();
+        List<DeviceNode> branches = new ArrayList<>();
+        for (DeviceNode child : node.getChildren()) {
+            (child.hasChildren() ? branches : leaves).add(child);
+        }
+        Collections.sort(leaves, BY_NAME);
+        Collections.sort(branches, BY_NAME);
+        leaves.addAll(branches);
+        return leaves;
     }
 
-    public static DeviceNode jsonToNode(String str) {
-        JsonObject e = jsonToGson(str);
+    // marks a name only one child has
+    private static final JsonArray EMPTY = new JsonArray();
 
-        Map.Entry<String, JsonElement> next = e.entrySet().iterator().next();
+    // stable, so children sharing a name stay in the order they were added
+    private static final Comparator<DeviceNode> BY_NAME = (a, b) -> a.getName().compareTo(b.getName());
 
-        return gsonToNode(next.getKey(), (JsonObject) next.getValue());
+    // typed values are written as JSON numbers and booleans; everything else as text
+    public static JsonPrimitive valueToGson(DeviceNode node) {
+        switch (node.getValueType()) {
+            case LONG:
+                return new JsonPrimitive(node.getLongValue());
+            case DOUBLE:
+                return new JsonPrimitive(node.getDoubleValue());
+            case BOOLEAN:
+                return new JsonPrimitive(node.getBooleanValue());
+            default:
+                return new JsonPrimitive(node.getValue());
+        }
     }
 
-    public static DeviceNode gsonToNode(String name, JsonObject e) {
-        DeviceNode n = new DeviceNode(name);
+    // JSON numbers and booleans come back as typed values
+    public static void gsonToValue(JsonPrimitive val, DeviceNode node) {
+        if (val.isBoolean()) {
+            node.setBooleanValue(val.getAsBoolean());
+        }
+        else if (val.isNumber()) {
+            setNumber(node, val.getAsString());
+        }
+        else {
+            node.setValue(val.getAsString());
+        }
+    }
 
-        Iterator<Map.Entry<String, JsonElement>> iterator = e.entrySet().iterator();
+    // whole numbers that fit are longs, the rest doubles
+    private static void setNumber(DeviceNode node, String text) {
+        if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+            try {
+                node.setLongValue(Long.parseLong(text));
+                return;
+            } catch (NumberFormatException ex) {
+                // too big for a long, keep it as a double
+            }
+        }
+        node.setDoubleValue(Double.parseDouble(text));
+    }
 
-        while (iterator.hasNext()) {
-            Map.Entry<String, JsonElement> next = iterator.next();
+    // same rules as the streaming reader, from a parsed JsonObject
+    public static DeviceNode gsonToNode(String name, JsonObject e) {
+        DeviceNode n = new DeviceNode(name);
 
-            if (next.getKey().equals("value")) {
-                JsonPrimitive val = next.getValue().getAsJsonPrimitive();
+        for (Map.Entry<String, JsonElement> next : e.entrySet()) {
+            String key = next.getKey();
+            JsonElement value = next.getValue();
 
-                n.setValue(val.getAsString());
-            } else {
-                try {
-                    if (((JsonObject) next.getValue()).isJsonPrimitive()) {
-                        n.addAttribute(next.getKey(), ((JsonObject) next.getValue()).getAsString());
+            if (value.isJsonNull()) {
+                continue;
+            }
+            if (key.equals("value")) {
+                if (!value.isJsonPrimitive()) {
+                    throw new JsonParseException("Expected a primitive value for " + name + " but was " + value);
+                }
+                gsonToValue(value.getAsJsonPrimitive(), n);
+            }
+            else if (value.isJsonPrimitive()) {
+                n.addAttribute(key, value.getAsString());
+            }
+            else if (value.isJsonObject()) {
+                n.addChild(gsonToNode(key, value.getAsJsonObject()));
+            }
+            else {
+                for (JsonElement element : value.getAsJsonArray()) {
+                    if (element.isJsonObject()) {
+                        n.addChild(gsonToNode(key, element.getAsJsonObject()));
+                    }
+                    else if (element.isJsonPrimitive()) {
+                        DeviceNode child = new DeviceNode(key);
+                        gsonToValue(element.getAsJsonPrimitive(), child);
+                        n.addChild(child);
                     }
-                    else {
-                        n.addChild(gsonToNode(next.getKey(), (JsonObject) next.getValue()));
+                    else if (element.isJsonArray()) {
+                        throw new JsonParseException("Arrays of arrays aren't nodes: " + key);
                     }
-                } catch (Exception ex) {
                 }
             }
         }
@@ -114,14 +358,162 @@ public class JsonConversions {
         return (JsonObject) parser.parse(str);
     }
 
+    // Reading takes {"name": {...}}, the shape nodeToJson() writes, and
+    // builds the first node in it:
+    //   "value": a primitive   the node's value, typed as gsonToValue() types it
+    //   "key": a primitive     an attribute
+    //   "key": an object       a child named key
+    //   "key": an array        children named key, one per element
+    // nulls are skipped. Anything else, like an object as "value" or an
+    // array in an array, throws a JsonParseException naming where it is.
+    public static DeviceNode jsonToNode(String str) {
+        try {
+            return readJson(new StringReader(str));
+        } catch (IOException ex) {
+            // bad syntax, as JsonParser reports it
+            throw new JsonSyntaxException(ex);
+        }
+    }
+
     public static DeviceNode jsonToNode(File f) throws Exception {
-        BufferedReader reader = new BufferedReader(new FileReader(f));
+        try (InputStream in = new FileInputStream(f)) {
+            return readJson(in);
+        }
+    }
 
-        JsonParser parser = new JsonParser();
-        JsonObject gson = (JsonObject) parser.parse(reader);
+// *********************************************** //
+// Streaming reader
+// *********************************************** //
+    // Builds the node while reading, without a JsonObject tree in between,
+    // so a large file is read a buffer at a time and never held whole. It
+    // keeps a stack of the open nodes rather than recursing. in isn't closed.
+    public static DeviceNode readJson(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        // as lenient as JsonParser, so NaN and the like read back
+        reader.setLenient(true);
+        try {
+            return readJson(reader);
+        } catch (IllegalStateException ex) {
+            // the reader's own complaints about what it found where
+            throw new JsonParseException(ex.getMessage(), ex);
+        }
+    }
 
-        Map.Entry<String, JsonElement> next = gson.entrySet().iterator().next();
+    // as UTF-8
+    public static DeviceNode readJson(InputStream in) throws IOException {
+        return readJson(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    // an open node's object, or an array of children of the node
+    private static class ReadFrame {
+        private final DeviceNode node;
+        // the array's children's name, null in an object
+        private final String arrayName;
+
+        private ReadFrame(DeviceNode node, String arrayName) {
+            this.node = node;
+            this.arrayName = arrayName;
+        }
+    }
+
+    private static DeviceNode readJson(JsonReader reader) throws IOException {
+        reader.beginObject();
+        if (!reader.hasNext()) {
+            throw malformed(reader, "No node");
+        }
+        String name = reader.nextName();
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw malformed(reader, "Expected an object for " + name + " but was " + reader.peek());
+        }
+        reader.beginObject();
+        DeviceNode root = new DeviceNode(name);
+
+        ArrayDeque<ReadFrame> stack = new ArrayDeque<>();
+        stack.push(new ReadFrame(root, null));
+        while (!stack.isEmpty()) {
+            ReadFrame f = stack.peek();
+            if (f.arrayName != null) {
+                if (!reader.hasNext()) {
+                    reader.endArray();
+                    stack.pop();
+                    continue;
+                }
+
+                JsonToken token = reader.peek();
+                if (token == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    stack.push(new ReadFrame(f.node.addChild(new DeviceNode(f.arrayName)), null));
+                }
+                else if (token == JsonToken.NULL) {
+                    reader.nextNull();
+                }
+                else if (token == JsonToken.BEGIN_ARRAY) {
+                    throw malformed(reader, "Arrays of arrays aren't nodes");
+                }
+                else {
+                    DeviceNode child = new DeviceNode(f.arrayName);
+                    readValue(reader, token, child);
+                    f.node.addChild(child);
+                }
+                continue;
+            }
+
+            if (!reader.hasNext()) {
+                reader.endObject();
+                stack.pop();
+                continue;
+            }
+
+            String key = reader.nextName();
+            JsonToken token = reader.peek();
+            if (token == JsonToken.NULL) {
+                reader.nextNull();
+            }
+            else if (key.equals("value")) {
+                if (token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY) {
+                    throw malformed(reader, "Expected a primitive value but was " + token);
+                }
+                readValue(reader, token, f.node);
+            }
+            else if (token == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                stack.push(new ReadFrame(f.node.addChild(new DeviceNode(key)), null));
+            }
+            else if (token == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                stack.push(new ReadFrame(f.node, key));
+            }
+            else {
+                f.node.addAttribute(key, token == JsonToken.BOOLEAN ? String.valueOf(reader.nextBoolean()) : reader.nextString());
+            }
+        }
+
+        // only the first node is read, as before; the rest must still be well formed
+        while (reader.hasNext()) {
+            reader.nextName();
+            reader.skipValue();
+        }
+        reader.endObject();
+        if (reader.peek() != JsonToken.END_DOCUMENT) {
+            throw malformed(reader, "Expected the end of the document but was " + reader.peek());
+        }
+        return root;
+    }
+
+    // same typing as gsonToValue()
+    private static void readValue(JsonReader reader, JsonToken token, DeviceNode node) throws IOException {
+        if (token == JsonToken.BOOLEAN) {
+            node.setBooleanValue(reader.nextBoolean());
+        }
+        else if (token == JsonToken.NUMBER) {
+            setNumber(node, reader.nextString());
+        }
+        else {
+            node.setValue(reader.nextString());
+        }
+    }
 
-        return gsonToNode(next.getKey(), (JsonObject) next.getValue());
+    private static JsonParseException malformed(JsonReader reader, String message) {
+        return new JsonParseException(message + " at " + reader.getPath());
     }
 }
@@ -1,10 +1,12 @@
 package rrb.infra.devicemodel.conversions;
 
 import rrb.infra.devicemodel.DeviceNode;
+import rrb.infra.devicemodel.TreeTransform;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -22,7 +24,41 @@ import org.jdom2.output.XMLOutputter;
  */
 public class XmlConversions {
 
+    // neither direction recurses (TreeTransform and xmlToNode keep their
+    // own stacks), so deep trees don't overflow the call stack
     public static Element nodeToXml(DeviceNode node) {
+        return TO_XML.apply(node);
+    }
+
+    // same as nodeToXml(), split over the ForkJoin common pool for big trees
+    public static Element nodeToXmlParallel(DeviceNode node) {
+        return TO_XML.applyParallel(node);
+    }
+
+    private static final TreeTransform<Element> TO_XML = new TreeTransform<Element>() {
+        @Override
+        protected List<DeviceNode> children(DeviceNode node) {
+            List<DeviceNode> ret = new ArrayList<>();
+            if (node.getChildren().size() > 0) {
+                for (DeviceNode child : node.getChildrenSorted()) {
+                    ret.add(node.getChild(child));
+                }
+            }
+            return ret;
+        }
+
+        @Override
+        protected Element combine(DeviceNode node, List<DeviceNode> children, List<Element> results) {
+            Element elem = nodeToElement(node);
+            for (Element child : results) {
+                elem.getChildren().add(child);
+            }
+            return elem;
+        }
+    };
+
+    // the element for the node alone, without its children
+    private static Element nodeToElement(DeviceNode node) {
         Element elem = new Element(node.getName());
         if (node.getAttributes().size() > 0) {
             Set<String> keySet = node.getAttributes().keySet();
@@ -36,13 +72,6 @@ public class XmlConversions {
         if (node.getValue() != null) {
             elem.setText(node.getValue().toString());
         }
-        
-        if (node.getChildren().size() > 0) {
-            List<DeviceNode> children = node.getChildrenSorted();
-            for (DeviceNode child : children) {
-                elem.getChildren().add(nodeToXml(node.getChild(child)));
-            }
-        }
 
         return elem;
     }
@@ -52,13 +81,50 @@ public class XmlConversions {
         return node;
     }
 
+    // an element still to be turned into a node and added to parent
+    private static class Pending {
+        private final Element e;
+        private final String id;
+        private final DeviceNode parent;
+
+        private Pending(Element e, String id, DeviceNode parent) {
+            this.e = e;
+            this.id = id;
+            this.parent = parent;
+        }
+    }
+
     public static DeviceNode xmlToNode(Element e, String id) {
-        String[] ids = new String[]{""};
-        if (e.getAttribute("ids") != null) {
-            ids = e.getAttributeValue("ids").split(",");
-            //e.removeAttribute("ids");
+        DeviceNode root = null;
+        ArrayDeque<Pending> stack = new ArrayDeque<>();
+        stack.push(new Pending(e, id, null));
+
+        while (!stack.isEmpty()) {
+            Pending p = stack.pop();
+            DeviceNode node = elementToNode(p.e, p.id);
+            if (p.parent == null) {
+                root = node;
+            } else {
+                try {
+                    p.parent.addChild(node);
+                } catch (Exception ex) {
+                    // same as before: a child that can't be added is left out, with its subtree
+                    continue;
+                }
+            }
+
+            // pushed in reverse so they're added in document order
+            List<Pending> children = childrenOf(p.e, node);
+            for (int idx = children.size() - 1; idx >= 0; idx--) {
+                stack.push(children.get(idx));
+            }
         }
 
+        return root;
+    }
+
+    // the node for the element alone, without its children
+    private static DeviceNode elementToNode(Element e, String id) {
         DeviceNode node = new DeviceNode(e.getName() + id);
         node.setValue(e.getTextTrim());
 
@@ -69,47 +135,50 @@ public class XmlConversions {
             node.addAttribute(a.getName(), a.getValue());
         }
 
+        return node;
+    }
+
+    private static List<Pending> childrenOf(Element e, DeviceNode node) {
+        String[] ids = new String[]{""};
+        if (e.getAttribute("ids") != null) {
+            ids = e.getAttributeValue("ids").split(",");
+            //e.removeAttribute("ids");
+        }
+
+        List<Pending> ret = new ArrayList<>();
         int idAttr = 0;
         for (String cid : ids) {
             for (Element c : e.getChildren()) {
                 // Determine if we have an id for these children.
                 if (cid.trim().length() > 0) {
                     // Use the cid.
-                    try {
-                        node.addChild(xmlToNode(c, cid));
-                    } catch (Exception ex) {}
+                    ret.add(new Pending(c, cid, node));
                 }
                 else {
                     // Check to see if the children already have _id attributes.
                     if (c.getAttribute("_id") != null) {
                         // Again, good to go.
-                        try {
-                            node.addChild(xmlToNode(c, ""));
-                        } catch (Exception ex) {}
+                        ret.add(new Pending(c, "", node));
                     }
                     else {
                         // Check to see how many siblings this child
                         // has with the same name.
                         if (e.getChildren(c.getName()).size() > 1) {
                             // We need to provide an id for them.
-                            try {
-                                c.setAttribute("_id", String.valueOf(idAttr));
-                                node.addChild(xmlToNode(c, ""));
-                                idAttr++;
-                            } catch (Exception ex) {}
+                            c.setAttribute("_id", String.valueOf(idAttr));
+                            ret.add(new Pending(c, "", node));
+                            idAttr++;
                         }
                         else {
                             // Only child, so good to go.
-                            try {
-                                node.addChild(xmlToNode(c, ""));
-                            } catch (Exception ex) {}
+                            ret.add(new Pending(c, "", node));
                         }
                     }
                 }
             }
         }
 
-        return node;
+        return ret;
     }
 
     public static DeviceNode xmlToNode(File f) throws IOException, JDOMException {
@@ -0,0 +1,101 @@
+package rrb.infra.devicemodelchecks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import rrb.infra.devicemodel.DeviceNode;
+import rrb.infra.devicemodel.NodeManager;
+
+// Times NodeManager.updateValues() against calling NodeManager.update() once
+// per path, with and without a listener on the root, and checks the batch
+// fires one event where the loop fires one per path. From DeviceModelChecks:
+//
+//     mvn exec:java -Dexec.mainClass=rrb.infra.devicemodelchecks.BatchUpdateCheck
+public class BatchUpdateCheck {
+    private static final int CHANNELS = 2000;
+    private static final int ROUNDS = 50;
+
+    public static void main(String[] args) {
+        DeviceNode root = new DeviceNode("Root");
+        DeviceNode channels = root.addChild(new DeviceNode("Channels"));
+        for (int i = 0; i < CHANNELS; i++) {
+            DeviceNode channel = new DeviceNode("Channel");
+            channel.addAttribute("_id", "" + i);
+            channel.addChild(new DeviceNode("Temperature", "" + i));
+            channels.addChild(channel);
+        }
+        NodeManager.getInstance(root);
+
+        System.out.println("unobserved:");
+        run(null);
+
+        AtomicInteger events = new AtomicInteger();
+        root.getChangeSupport().addPropertyChangeListener(e -> events.incrementAndGet());
+        System.out.println("one listener on the root:");
+        boolean ok = run(events);
+
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    // a warmup pass then a timed one of each; false if the values or the
+    // event counts are off
+    private static boolean run(AtomicInteger events) {
+        boolean ok = true;
+        for (int pass = 0; pass < 2; pass++) {
+            long loop = 0;
+            long batch = 0;
+            int loopEvents = 0;
+            int batchEvents = 0;
+
+            for (int round = 0; round < ROUNDS; round++) {
+                Map<String, String> values = values("l" + round);
+                int before = events != null ? events.get() : 0;
+                long start = System.nanoTime();
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    NodeManager.update(entry.getKey(), entry.getValue());
+                }
+                loop += System.nanoTime() - start;
+                loopEvents += events != null ? events.get() - before : 0;
+                ok &= applied(values);
+
+                values = values("b" + round);
+                before = events != null ? events.get() : 0;
+                start = System.nanoTime();
+                NodeManager.updateValues(values);
+                batch += System.nanoTime() - start;
+                batchEvents += events != null ? events.get() - before : 0;
+                ok &= applied(values);
+            }
+
+            if (pass == 1) {
+                System.out.printf("  update() per path: %.1f ms/round, %d events/round%n",
+                        loop / 1e6 / ROUNDS, loopEvents / ROUNDS);
+                System.out.printf("  updateValues():    %.1f ms/round, %d events/round%n",
+                        batch / 1e6 / ROUNDS, batchEvents / ROUNDS);
+                if (events != null) {
+                    ok &= loopEvents == CHANNELS * ROUNDS && batchEvents == ROUNDS;
+                }
+            }
+        }
+        return ok;
+    }
+
+    private static Map<String, String> values(String prefix) {
+        Map<String, String> ret = new LinkedHashMap<>();
+        for (int i = 0; i < CHANNELS; i++) {
+            ret.put("/Root/Channels/Channel/_" + i + "/Temperature", prefix + "-" + i);
+        }
+        return ret;
+    }
+
+    private static boolean applied(Map<String, String> values) {
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (!entry.getValue().equals(NodeManager.getChildByPath(entry.getKey()).getValue())) {
+                System.out.println("  " + entry.getKey() + " is " + NodeManager.getChildByPath(entry.getKey()).getValue());
+                return false;
+            }
+        }
+        return true;
+    }
+}
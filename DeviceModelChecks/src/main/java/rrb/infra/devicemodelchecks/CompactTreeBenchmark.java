@@ -0,0 +1,101 @@
+package rrb.infra.devicemodelchecks;
+
+import rrb.infra.devicemodel.CompactDeviceTree;
+import rrb.infra.devicemodel.DeviceNode;
+import rrb.infra.devicemodel.TreeNode;
+
+// Compares a CompactDeviceTree with the DeviceNode tree it was built from:
+// heap used, a full walk (through TreeNode for both, and by id for the
+// compact tree) and 1000-channel updates. Pass "direct" to keep the compact
+// tree's int columns off-heap. Give it a big heap; from DeviceModelChecks:
+//
+//     MAVEN_OPTS=-Xmx2g mvn exec:java -Dexec.mainClass=rrb.infra.devicemodelchecks.CompactTreeBenchmark
+public class CompactTreeBenchmark {
+    private static final int CHANNELS = 100000;
+    private static final String[] LEAVES = {"Temperature", "Voltage", "Current", "Power", "Status",
+        "Mode", "Gain", "Offset", "Frequency", "Phase"};
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        boolean direct = args.length > 0 && args[0].equals("direct");
+
+        long before = used();
+        DeviceNode root = new DeviceNode("Root");
+        DeviceNode channels = root.addChild(new DeviceNode("Channels"));
+        for (int i = 0; i < CHANNELS; i++) {
+            DeviceNode channel = new DeviceNode("Channel");
+            channel.addAttribute("_id", "" + i);
+            for (String leaf : LEAVES) {
+                channel.addChild(new DeviceNode(leaf, "0"));
+            }
+            channels.addChild(channel);
+        }
+        long built = used();
+        CompactDeviceTree tree = new CompactDeviceTree(root, direct);
+        long compacted = used();
+        System.out.printf("%d nodes: DeviceNode %.1f MB, compact%s %.1f MB on the heap%n", tree.size(),
+                (built - before) / 1048576.0, direct ? " (direct)" : "", (compacted - built) / 1048576.0);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            long deviceNodes = walk(root);
+            long walked = System.nanoTime();
+            long compactNodes = walk(tree.getRoot());
+            long handles = System.nanoTime();
+            long ids = walk(tree, 0);
+            long end = System.nanoTime();
+            System.out.printf("walk: DeviceNode %.1f ms, compact by handle %.1f ms, by id %.1f ms (%d/%d/%d nodes)%n",
+                    (walked - start) / 1e6, (handles - walked) / 1e6, (end - handles) / 1e6,
+                    deviceNodes, compactNodes, ids);
+        }
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            DeviceNode update = update(round * 10000, 1000, round);
+            long start = System.nanoTime();
+            tree.getRoot().update(update);
+            long compact = System.nanoTime();
+            root.update(update);
+            long end = System.nanoTime();
+            System.out.printf("1000-channel update: compact %.2f ms, DeviceNode %.2f ms%n",
+                    (compact - start) / 1e6, (end - compact) / 1e6);
+        }
+    }
+
+    // the same walk over either tree
+    private static <N extends TreeNode<N>> long walk(N node) {
+        long ret = 1;
+        for (N child : node.getChildren()) {
+            ret += walk(child);
+        }
+        return ret;
+    }
+
+    private static long walk(CompactDeviceTree tree, int id) {
+        long ret = 1;
+        int count = tree.getChildCount(id);
+        for (int idx = 0; idx < count; idx++) {
+            ret += walk(tree, tree.getChild(id, idx));
+        }
+        return ret;
+    }
+
+    private static DeviceNode update(int from, int count, int round) {
+        DeviceNode ret = new DeviceNode("Root");
+        DeviceNode channels = ret.addChild(new DeviceNode("Channels"));
+        for (int i = from; i < from + count; i++) {
+            DeviceNode channel = new DeviceNode("Channel");
+            channel.addAttribute("_id", "" + i);
+            channel.addChild(new DeviceNode("Temperature", "t" + round));
+            channels.addChild(channel);
+        }
+        return ret;
+    }
+
+    private static long used() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
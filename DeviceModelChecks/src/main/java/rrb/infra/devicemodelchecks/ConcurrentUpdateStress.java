@@ -0,0 +1,152 @@
+package rrb.infra.devicemodelchecks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import rrb.infra.devicemodel.DeviceNode;
+
+// Runs several writers against one tree and checks what they leave behind:
+// no duplicate children when they all add the same ones, no torn typed
+// values, each thread's last write in place. Then prints updates/s for
+// threads writing disjoint channels. From DeviceModelChecks:
+//
+//     mvn exec:java -Dexec.mainClass=rrb.infra.devicemodelchecks.ConcurrentUpdateStress -Dexec.args=4
+public class ConcurrentUpdateStress {
+    private static final int CHANNELS = 64;
+    private static final int UPDATES_PER_THREAD = 200000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        if (maxThreads < 1 || maxThreads > CHANNELS - 2) {
+            System.err.println("Threads must be between 1 and " + (CHANNELS - 2));
+            System.exit(2);
+        }
+
+        DeviceNode root = new DeviceNode("Root");
+        DeviceNode channels = root.addChild(new DeviceNode("Channels"));
+        for (int i = 0; i < CHANNELS; i++) {
+            DeviceNode channel = new DeviceNode("Channel");
+            channel.addAttribute("_id", "" + i);
+            for (int k = 0; k < 8; k++) {
+                channel.addChild(new DeviceNode("Value" + k, "0"));
+            }
+            channels.addChild(channel);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(8, maxThreads));
+        boolean ok;
+        try {
+            ok = findOrAdd(channels, pool) & tearing(channels, pool) & throughput(channels, pool, maxThreads);
+        } finally {
+            pool.shutdown();
+        }
+
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    // 8 threads all add the same 100 children to one channel; each has to end up there once
+    private static boolean findOrAdd(DeviceNode channels, ExecutorService pool) throws Exception {
+        DeviceNode target = channels.getChild("Channel", "0");
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            writers.add(pool.submit(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    DeviceNode update = new DeviceNode("Channel");
+                    update.addAttribute("_id", "0");
+                    update.addChild(new DeviceNode("Added" + (i % 100), "x"));
+                    target.update(update);
+                }
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+
+        int duplicates = 0;
+        for (int i = 0; i < 100; i++) {
+            if (target.getChildren("Added" + i).size() != 1) {
+                duplicates++;
+            }
+        }
+        System.out.println("find-or-add: " + duplicates + " of 100 children missing or duplicated");
+        return duplicates == 0;
+    }
+
+    // one thread flips a leaf between a long and a double while another reads it
+    private static boolean tearing(DeviceNode channels, ExecutorService pool) throws Exception {
+        DeviceNode leaf = channels.getChild("Channel", "1").getChild("Value0");
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<String> torn = new AtomicReference<>();
+        Future<?> reader = pool.submit(() -> {
+            while (!stop.get()) {
+                String value = leaf.getValue();
+                if (value != null && !value.equals("0") && !value.equals("7") && !value.equals("2.5")) {
+                    torn.set(value);
+                }
+            }
+        });
+
+        for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+            if ((i & 1) == 0) {
+                leaf.setLongValue(7);
+            } else {
+                leaf.setDoubleValue(2.5);
+            }
+        }
+        stop.set(true);
+        reader.get();
+
+        System.out.println("typed values: " + (torn.get() == null ? "none torn" : "read torn value " + torn.get()));
+        return torn.get() == null;
+    }
+
+    // each thread updates a channel of its own; prints the combined rate
+    private static boolean throughput(DeviceNode channels, ExecutorService pool, int maxThreads) throws Exception {
+        boolean ok = true;
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            CountDownLatch go = new CountDownLatch(1);
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String id = "" + (t + 2);
+                writers.add(pool.submit(() -> {
+                    DeviceNode channel = channels.getChild("Channel", id);
+                    DeviceNode update = new DeviceNode("Channel");
+                    update.addAttribute("_id", id);
+                    DeviceNode value = update.addChild(new DeviceNode("Value1"));
+                    go.await();
+                    for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+                        value.setLongValue(i + 1);
+                        channel.update(update);
+                    }
+                    return null;
+                }));
+            }
+
+            long start = System.nanoTime();
+            go.countDown();
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("threads=%d updates/s=%.0f%n", threads, (double) threads * UPDATES_PER_THREAD / (elapsed / 1e9));
+
+            for (int t = 0; t < threads; t++) {
+                DeviceNode value = channels.getChild("Channel", "" + (t + 2)).getChild("Value1");
+                if (value.getLongValue() != UPDATES_PER_THREAD) {
+                    System.out.println("channel " + (t + 2) + " ended at " + value.getValue());
+                    ok = false;
+                }
+            }
+            if (threads == maxThreads) {
+                break;
+            }
+        }
+        return ok;
+    }
+}
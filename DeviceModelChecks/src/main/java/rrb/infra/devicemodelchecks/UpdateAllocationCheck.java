@@ -0,0 +1,68 @@
+package rrb.infra.devicemodelchecks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+import rrb.infra.devicemodel.DeviceNode;
+
+// Checks that updating a leaf nobody listens to allocates nothing, and that
+// the same updates still fire events once there's a listener. Needs a JVM
+// that counts allocated bytes per thread (HotSpot does). From DeviceModelChecks:
+//
+//     mvn exec:java -Dexec.mainClass=rrb.infra.devicemodelchecks.UpdateAllocationCheck
+public class UpdateAllocationCheck {
+    private static final int WARMUP = 200000;
+    private static final int UPDATES = 100000;
+    // some slack for the odd allocation the JIT leaves in
+    private static final double MAX_BYTES_PER_UPDATE = 1.0;
+
+    public static void main(String[] args) {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (!(mx instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) mx).isThreadAllocatedMemorySupported()) {
+            System.err.println("This JVM doesn't count allocated bytes per thread");
+            System.exit(2);
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) mx;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        DeviceNode root = new DeviceNode("Root");
+        DeviceNode channels = root.addChild(new DeviceNode("Channels"));
+        for (int i = 0; i < 100; i++) {
+            DeviceNode channel = new DeviceNode("Channel");
+            channel.addAttribute("_id", "" + i);
+            channel.addChild(new DeviceNode("Temperature", "" + i));
+            channels.addChild(channel);
+        }
+
+        // two updates that alternate, so every one is a real change
+        DeviceNode leaf = channels.getChild("Channel", "5").getChild("Temperature");
+        DeviceNode a = leaf.cloneShallow();
+        a.setValue("a");
+        DeviceNode b = leaf.cloneShallow();
+        b.setValue("b");
+
+        for (int i = 0; i < WARMUP; i++) {
+            leaf.update((i & 1) == 0 ? a : b);
+        }
+        long tid = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < UPDATES; i++) {
+            leaf.update((i & 1) == 0 ? a : b);
+        }
+        long after = allocations.getThreadAllocatedBytes(tid);
+        double perUpdate = (after - before) / (double) UPDATES;
+        System.out.printf("unobserved: %.2f bytes/update%n", perUpdate);
+
+        // the same updates with a listener on the root fire one event each
+        AtomicInteger events = new AtomicInteger();
+        root.getChangeSupport().addPropertyChangeListener(e -> events.incrementAndGet());
+        leaf.update(a);
+        leaf.update(b);
+        System.out.println("observed: " + events.get() + " events for 2 updates");
+
+        boolean ok = perUpdate <= MAX_BYTES_PER_UPDATE && events.get() == 2;
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,68 @@
+package rrb.infra.devicemodelchecks;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import rrb.infra.devicemodel.DeviceNode;
+import rrb.infra.devicemodel.conversions.JsonConversions;
+import rrb.infra.devicemodel.conversions.XmlConversions;
+
+// Writes a node of each value type out as JSON (both writers) and XML, reads
+// it back and checks the typed getters give the same values. From
+// DeviceModelChecks:
+//
+//     mvn exec:java -Dexec.mainClass=rrb.infra.devicemodelchecks.ValueRoundTripCheck
+public class ValueRoundTripCheck {
+    private static final byte[] BYTES = {0, 1, 2, (byte) 0xfe, (byte) 0xff, 'A'};
+
+    public static void main(String[] args) throws Exception {
+        DeviceNode root = new DeviceNode("Root");
+        root.addChild(leaf("Text")).setValue("some text");
+        root.addChild(leaf("Long")).setLongValue(-42);
+        root.addChild(leaf("Double")).setDoubleValue(2.5);
+        root.addChild(leaf("Boolean")).setBooleanValue(true);
+        root.addChild(leaf("Bytes")).setBytesValue(BYTES);
+
+        StringWriter streamed = new StringWriter();
+        JsonConversions.writeJson(root, streamed);
+
+        boolean ok = check("json", root, JsonConversions.jsonToNode(JsonConversions.nodeToJson(root)))
+                & check("streamed json", root, JsonConversions.readJson(new StringReader(streamed.toString())))
+                & check("xml", root, XmlConversions.xmlToNode(XmlConversions.nodeToXmlString(root)));
+
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    // with an attribute, so JSON writes it as an object with a "value";
+    // a bare leaf value would read back as an attribute of its parent
+    private static DeviceNode leaf(String name) {
+        DeviceNode ret = new DeviceNode(name);
+        ret.addAttribute("unit", "none");
+        return ret;
+    }
+
+    private static boolean check(String format, DeviceNode expected, DeviceNode read) {
+        boolean ok = same(format, "Text", expected.getChild("Text").getValue(), read.getChild("Text").getValue())
+                & same(format, "Long", expected.getChild("Long").getLongValue(), read.getChild("Long").getLongValue())
+                & same(format, "Double", expected.getChild("Double").getDoubleValue(), read.getChild("Double").getDoubleValue())
+                & same(format, "Boolean", expected.getChild("Boolean").getBooleanValue(), read.getChild("Boolean").getBooleanValue());
+
+        byte[] bytes = read.getChild("Bytes").getBytesValue();
+        if (!Arrays.equals(BYTES, bytes)) {
+            System.out.println(format + ": Bytes came back as " + Arrays.toString(bytes));
+            ok = false;
+        }
+
+        System.out.println(format + ": " + (ok ? "all values read back" : "values differ"));
+        return ok;
+    }
+
+    private static boolean same(String format, String name, Object expected, Object read) {
+        if (expected.equals(read)) {
+            return true;
+        }
+        System.out.println(format + ": " + name + " was " + expected + ", read back " + read);
+        return false;
+    }
+}